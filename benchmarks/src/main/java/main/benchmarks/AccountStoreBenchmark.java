@@ -0,0 +1,83 @@
+package main.benchmarks;
+
+import main.AccountStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the accounts, the username check of the registration and the login.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountStoreBenchmark {
+    private static final String LOGIN_USER = "benchmark-user";
+    private static final String LOGIN_PASSWORD = "correct horse battery staple";
+
+    @Param({"1000", "100000", "1000000"})
+    public int accounts;
+
+    private Path directory;
+    private String accountsFile;
+    private AccountStore store;
+    private String existingUser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("account-store-benchmark");
+        accountsFile = directory.resolve("accounts.txt").toString();
+        DataSets.writeAccounts(Path.of(accountsFile), accounts);
+        store = new AccountStore(accountsFile);
+        store.load();
+        store.createAccount(LOGIN_USER, LOGIN_PASSWORD);
+        existingUser = DataSets.username(accounts / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DataSets.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int load() {
+        AccountStore loaded = new AccountStore(accountsFile);
+        loaded.load();
+        return loaded.size();
+    }
+
+    @Benchmark
+    public boolean isUsernameTaken() {
+        return store.isUsernameTaken(existingUser);
+    }
+
+    @Benchmark
+    public boolean isUsernameFree() {
+        return store.isUsernameTaken("new-user");
+    }
+
+    /**
+     * A successful login with the scrypt hash of the account.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean login() {
+        return store.verify(LOGIN_USER, LOGIN_PASSWORD);
+    }
+
+    /**
+     * A login with an unknown username, which costs the same as a wrong password.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean loginUnknownUser() {
+        return store.verify("unknown-user", LOGIN_PASSWORD);
+    }
+}
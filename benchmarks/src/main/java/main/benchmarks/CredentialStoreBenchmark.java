@@ -0,0 +1,98 @@
+package main.benchmarks;
+
+import main.CredentialRecord;
+import main.CredentialStore;
+import main.PasswordEntry;
+import main.WriteAheadLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the entries at startup, the entries of the logged in user (Main.loadEntries), reading the
+ * entries of one user straight from the memory mapped files (CLI and vault conversion), and saving and
+ * deleting an entry (Main.saveEntry and Main.deleteEntry).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialStoreBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    @Param({"1000"})
+    public int users;
+
+    @Param({"GROUP", "ASYNC"})
+    public String durability;
+
+    private Path directory;
+    private String snapshotFile;
+    private String logFile;
+    private CredentialStore store;
+    private String user;
+    private CredentialRecord record;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("credential-store-benchmark");
+        snapshotFile = directory.resolve("passwords.txt").toString();
+        logFile = directory.resolve("passwords.log").toString();
+        DataSets.writeSnapshot(Path.of(snapshotFile), entries, users);
+        store = new CredentialStore(snapshotFile, logFile, WriteAheadLog.DurabilityMode.valueOf(durability));
+        store.load();
+        user = DataSets.username(users / 2);
+        record = DataSets.record(users / 2, users);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        DataSets.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int load() {
+        CredentialStore loaded = new CredentialStore(snapshotFile, logFile, WriteAheadLog.DurabilityMode.ASYNC);
+        loaded.load();
+        int size = loaded.size();
+        // releases the lock file
+        loaded.close();
+        return size;
+    }
+
+    @Benchmark
+    public List<PasswordEntry> loadEntries() {
+        List<PasswordEntry> loadedEntries = new ArrayList<>();
+        for (CredentialRecord userRecord : store.entriesFor(user)) {
+            loadedEntries.add(new PasswordEntry(userRecord));
+        }
+        return loadedEntries;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<CredentialRecord> readUserMapped() throws IOException {
+        return CredentialStore.readUser(snapshotFile, logFile, user);
+    }
+
+    /**
+     * Deleting and adding back the same entry, both are appended to the log and compacted like in the UI.
+     */
+    @Benchmark
+    public boolean deleteAndSaveEntry() throws IOException {
+        boolean deleted = store.delete(record);
+        store.add(record);
+        return deleted;
+    }
+}
@@ -0,0 +1,106 @@
+package main.benchmarks;
+
+import main.CredentialRecord;
+import main.RecordCodec;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generated data files for the benchmarks. The entries are spread evenly over the users, entry i belongs
+ * to user i % users.
+ */
+final class DataSets {
+    static final String DATE = "04.02.2025 21:35";
+
+    private DataSets() {
+    }
+
+    static String username(int user) {
+        return "user" + user;
+    }
+
+    static CredentialRecord record(int entry, int users) {
+        return new CredentialRecord(username(entry % users), "site" + entry + ".example.com", "p@ss,word-" + entry,
+                DATE, "images/" + username(entry % users) + "_site" + entry + "_20250204_213513.png");
+    }
+
+    static List<CredentialRecord> recordsOf(int user, int entries, int users) {
+        List<CredentialRecord> records = new ArrayList<>();
+        for (int entry = user; entry < entries; entry += users) {
+            records.add(record(entry, users));
+        }
+        return records;
+    }
+
+    /**
+     * Writes a passwords.txt snapshot with the given number of entries, in the current format with quoted
+     * passwords.
+     */
+    static void writeSnapshot(Path file, int entries, int users) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write(RecordCodec.FORMAT_HEADER);
+            writer.newLine();
+            for (int entry = 0; entry < entries; entry++) {
+                record(entry, users).appendCsvLine(writer);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes an accounts.txt with unhashed passwords of earlier versions, hashing a million passwords
+     * with scrypt would take hours.
+     */
+    static void writeAccounts(Path file, int accounts) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int account = 0; account < accounts; account++) {
+                writer.write(RecordCodec.join(username(account), "password" + account));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * A PNG with noise, which compresses about as badly as a generated image.
+     */
+    static byte[] png(int size, long seed) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int base = (x * 255 / size) << 16 | (y * 255 / size) << 8;
+                image.setRGB(x, y, base | random.nextInt(64));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
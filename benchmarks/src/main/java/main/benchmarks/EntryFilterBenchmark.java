@@ -0,0 +1,65 @@
+package main.benchmarks;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import main.PasswordEntry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Filtering the table by website like the search field of Main does, against the number of entries of
+ * the user: the FilteredList predicate on the precomputed lower case search key of the rows, and for
+ * comparison lower casing every website while the predicate is evaluated. One frame is about 16 ms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntryFilterBenchmark {
+    // a query matching one entry, some entries, all entries and none, typed with mixed case
+    private static final String[] QUERIES = {"Site4242.", "site12", "EXAMPLE", "nothing"};
+
+    @Param({"1000", "10000", "50000"})
+    public int entries;
+
+    private FilteredList<PasswordEntry> filteredEntries;
+    private int nextQuery = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<PasswordEntry> rows = new ArrayList<>();
+        for (int entry = 0; entry < entries; entry++) {
+            rows.add(new PasswordEntry(DataSets.record(entry, 1)));
+        }
+        ObservableList<PasswordEntry> list = FXCollections.observableArrayList(rows);
+        filteredEntries = new FilteredList<>(list);
+    }
+
+    @Benchmark
+    public int filterBySearchKey() {
+        String query = nextQuery();
+        filteredEntries.setPredicate(entry -> entry.getSearchKey().contains(query));
+        return filteredEntries.size();
+    }
+
+    @Benchmark
+    public int filterByLowerCasedWebsite() {
+        String query = nextQuery();
+        filteredEntries.setPredicate(entry -> entry.getWebsite().toLowerCase(Locale.ROOT).contains(query));
+        return filteredEntries.size();
+    }
+
+    // normalized like the search field, each call filters with another query
+    private String nextQuery() {
+        String query = QUERIES[nextQuery];
+        nextQuery = (nextQuery + 1) % QUERIES.length;
+        return query.trim().toLowerCase(Locale.ROOT);
+    }
+}
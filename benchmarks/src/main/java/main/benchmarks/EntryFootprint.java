@@ -0,0 +1,46 @@
+package main.benchmarks;
+
+import main.CredentialRecord;
+import main.PasswordEntry;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.function.IntFunction;
+
+/**
+ * Retained memory per entry, measured with JOL: the record the store keeps, a table row that was never
+ * shown, and a row bound to visible cells. All properties of a row are created once it is shown, which is
+ * what every row allocated before the properties were created lazily, so the last two lines compare the
+ * memory per row before and after. Run with
+ * {@code java -cp target/benchmarks.jar main.benchmarks.EntryFootprint [entries]}.
+ */
+public class EntryFootprint {
+
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        print("CredentialRecord", entries, entry -> DataSets.record(entry, 1));
+        print("PasswordEntry, not shown", entries, entry -> new PasswordEntry(DataSets.record(entry, 1)));
+        print("PasswordEntry, shown (eager before)", entries, entry -> {
+            PasswordEntry row = new PasswordEntry(DataSets.record(entry, 1));
+            row.websiteProperty();
+            row.passwordProperty();
+            row.dateProperty();
+            row.displayedImagePathProperty();
+            return row;
+        });
+    }
+
+    // objects shared by all entries are cancelled out by measuring twice as many entries
+    private static void print(String name, int entries, IntFunction<Object> factory) {
+        long single = footprint(entries, factory);
+        long twice = footprint(2 * entries, factory);
+        System.out.printf("%-40s %6d bytes per entry%n", name, (twice - single) / entries);
+    }
+
+    private static long footprint(int entries, IntFunction<Object> factory) {
+        Object[] objects = new Object[entries];
+        for (int entry = 0; entry < entries; entry++) {
+            objects[entry] = factory.apply(entry);
+        }
+        return GraphLayout.parseInstance(objects).totalSize();
+    }
+}
@@ -0,0 +1,134 @@
+package main.benchmarks;
+
+import main.ImageGenerator;
+import main.ImageStore;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end generateImage against a MockWebServer that stands in for the LLM and image endpoints of
+ * LocalAI, so the client side of the pipeline is measured without the inference itself: requests,
+ * streaming the prompt, downloading or decoding the image and saving it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageGeneratorBenchmark {
+    private static final String PROMPT = "A red fox jumps over a wooden fence in the snow at dawn. It looks happy.";
+
+    @Param({"url", "b64_json"})
+    public String responseFormat;
+
+    @Param({"false", "true"})
+    public boolean llmStreaming;
+
+    @Param({"false", "true"})
+    public boolean imageStore;
+
+    private Path directory;
+    private MockWebServer server;
+    private ImageGenerator generator;
+    private ImageStore store;
+    private int generation = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("image-generator-benchmark");
+        byte[] png = DataSets.png(512, 42);
+        server = new MockWebServer();
+        server.setDispatcher(new LocalAiDispatcher(png));
+        server.start();
+
+        generator = new ImageGenerator();
+        generator.setGenerationCache(null);
+        generator.setLlmEndpoint(server.url("/v1/chat/completions").toString());
+        generator.setImageEndpoint(server.url("/v1/images/generations").toString());
+        generator.setImageResponseFormat(responseFormat);
+        generator.setLlmStreaming(llmStreaming);
+        generator.setDefaultImagePath(directory.resolve("images").toString());
+        if (imageStore) {
+            store = new ImageStore(directory.resolve("store").toString());
+            store.load();
+            generator.setImageStore(store);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        generator.shutdown();
+        if (store != null) {
+            store.close();
+        }
+        server.shutdown();
+        DataSets.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String generateImage() {
+        String imagePath = generator.generateImage("correct horse battery staple", "benchmark_" + generation++ + ".png", false);
+        if (imagePath == null) {
+            throw new IllegalStateException("Image generation failed");
+        }
+        return imagePath;
+    }
+
+    // answers like LocalAI: a chat completion (streamed if requested) and an image as URL or base64
+    private class LocalAiDispatcher extends Dispatcher {
+        private final byte[] png;
+        private final String base64Response;
+
+        LocalAiDispatcher(byte[] png) {
+            this.png = png;
+            this.base64Response = "{\"data\":[{\"b64_json\":\"" + Base64.getEncoder().encodeToString(png) + "\"}]}";
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            String path = request.getPath() == null ? "" : request.getPath();
+            if (path.startsWith("/v1/chat/completions")) {
+                if (request.getBody().readUtf8().contains("\"stream\":true")) {
+                    return new MockResponse()
+                            .setHeader("Content-Type", "text/event-stream")
+                            .setBody(streamedPrompt());
+                }
+                return new MockResponse()
+                        .setHeader("Content-Type", "application/json")
+                        .setBody("{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"" + PROMPT + "\"}}]}");
+            }
+            if (path.startsWith("/v1/images/generations")) {
+                String body = request.getBody().readUtf8();
+                return new MockResponse()
+                        .setHeader("Content-Type", "application/json")
+                        .setBody(body.contains("b64_json") ? base64Response
+                                : "{\"data\":[{\"url\":\"" + server.url("/generated/image.png") + "\"}]}");
+            }
+            if (path.startsWith("/generated/")) {
+                return new MockResponse()
+                        .setHeader("Content-Type", "image/png")
+                        .setBody(new Buffer().write(png));
+            }
+            return new MockResponse().setResponseCode(404);
+        }
+
+        private static String streamedPrompt() {
+            StringBuilder events = new StringBuilder();
+            for (String word : PROMPT.split(" ")) {
+                events.append("data: {\"choices\":[{\"delta\":{\"content\":\"").append(word).append(" \"}}]}\n\n");
+            }
+            return events.append("data: [DONE]\n\n").toString();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package main.benchmarks;
+
+import main.ImageStore;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a table row costs to render: reading and decoding the stored thumbnail, compared with decoding the
+ * full image file as before the image store. Also storing an image that is already stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageStoreBenchmark {
+    private static final int IMAGES = 64;
+
+    private Path directory;
+    private ImageStore store;
+    private final List<String> storedPaths = new ArrayList<>();
+    private final List<Path> imageFiles = new ArrayList<>();
+    private byte[] storedImage;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("image-store-benchmark");
+        store = new ImageStore(directory.resolve("store").toString());
+        store.load();
+        for (int i = 0; i < IMAGES; i++) {
+            byte[] png = DataSets.png(512, i);
+            storedPaths.add(store.put(png));
+            Path file = directory.resolve("image" + i + ".png");
+            Files.write(file, png);
+            imageFiles.add(file);
+        }
+        storedImage = DataSets.png(512, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        DataSets.deleteRecursively(directory);
+    }
+
+    private int nextIndex() {
+        next = (next + 1) % IMAGES;
+        return next;
+    }
+
+    @Benchmark
+    public BufferedImage decodeStoredThumbnail() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(store.readThumbnail(storedPaths.get(nextIndex()))));
+    }
+
+    @Benchmark
+    public BufferedImage decodeImageFile() throws IOException {
+        return ImageIO.read(imageFiles.get(nextIndex()).toFile());
+    }
+
+    @Benchmark
+    public byte[] readStoredThumbnail() throws IOException {
+        return store.readThumbnail(storedPaths.get(nextIndex()));
+    }
+
+    /**
+     * Hashing the image and adding a reference; the released reference keeps the index from growing
+     * unused bytes.
+     */
+    @Benchmark
+    public String putDuplicate() throws IOException {
+        String path = store.put(storedImage);
+        store.release(path);
+        return path;
+    }
+}
@@ -0,0 +1,69 @@
+package main.benchmarks;
+
+import main.CredentialRecord;
+import main.RecordCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing the lines of passwords.txt, compared with the split and join used before the codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordCodecBenchmark {
+    private static final int LINES = 1024;
+
+    private final RecordCodec codec = new RecordCodec();
+    private final String[] fields = new String[CredentialRecord.FIELD_COUNT];
+    private final String[] lines = new String[LINES];
+    private final CredentialRecord[] records = new CredentialRecord[LINES];
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < LINES; i++) {
+            // without commas in the password, so split gets the same fields
+            CredentialRecord record = DataSets.record(i, 100);
+            records[i] = new CredentialRecord(record.username(), record.website(), "password-" + i, record.date(), record.imagePath());
+            lines[i] = records[i].toCsvLine();
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (LINES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public void parseCodec(Blackhole blackhole) {
+        blackhole.consume(codec.parse(lines[nextIndex()], 0, fields));
+        blackhole.consume(fields);
+    }
+
+    @Benchmark
+    public String[] parseSplit() {
+        return lines[nextIndex()].split(",");
+    }
+
+    @Benchmark
+    public CredentialRecord parseRecord() {
+        return CredentialRecord.fromCsvLine(lines[nextIndex()]);
+    }
+
+    @Benchmark
+    public String writeCodec() {
+        return records[nextIndex()].toCsvLine();
+    }
+
+    @Benchmark
+    public String writeJoin() {
+        CredentialRecord record = records[nextIndex()];
+        return String.join(",", record.username(), record.website(), record.password(), record.date(), record.imagePath());
+    }
+}
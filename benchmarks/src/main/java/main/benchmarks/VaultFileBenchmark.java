@@ -0,0 +1,95 @@
+package main.benchmarks;
+
+import main.CredentialRecord;
+import main.CredentialStore;
+import main.VaultEntry;
+import main.VaultFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the entries of one user from the encrypted vault, including the key derivation, compared with
+ * reading them from passwords.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VaultFileBenchmark {
+    private static final String PASSWORD = "correct horse battery staple";
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    // every section is written separately and rewrites the vault, so fewer users than in the other benchmarks
+    @Param({"10"})
+    public int users;
+
+    private Path directory;
+    private Path vaultFile;
+    private String snapshotFile;
+    private String logFile;
+    private String user;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        directory = Files.createTempDirectory("vault-benchmark");
+        vaultFile = directory.resolve("passwords.vault");
+        snapshotFile = directory.resolve("passwords.txt").toString();
+        logFile = directory.resolve("passwords.log").toString();
+        DataSets.writeSnapshot(Path.of(snapshotFile), entries, users);
+        VaultFile vault = VaultFile.open(vaultFile);
+        for (int i = 0; i < users; i++) {
+            vault.writeUser(DataSets.username(i), PASSWORD, DataSets.recordsOf(i, entries, users));
+        }
+        user = DataSets.username(users / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DataSets.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public List<VaultEntry> readUserFromVault() throws IOException, GeneralSecurityException {
+        return VaultFile.open(vaultFile).readUser(user, PASSWORD);
+    }
+
+    /**
+     * Decrypting one password, which happens when it is revealed in the table.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String revealPassword(VaultState state) throws GeneralSecurityException {
+        return state.entries.get(state.next()).revealPassword();
+    }
+
+    @Benchmark
+    public List<CredentialRecord> readUserFromCsv() throws IOException {
+        return CredentialStore.readUser(snapshotFile, logFile, user);
+    }
+
+    @State(Scope.Thread)
+    public static class VaultState {
+        List<VaultEntry> entries;
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(VaultFileBenchmark benchmark) throws IOException, GeneralSecurityException {
+            entries = VaultFile.open(benchmark.vaultFile).readUser(benchmark.user, PASSWORD);
+        }
+
+        int next() {
+            next = (next + 1) % entries.size();
+            return next;
+        }
+    }
+}
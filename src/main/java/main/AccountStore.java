@@ -0,0 +1,305 @@
+package main;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * User accounts, loaded once into a hash map.
+ * <p>
+ * Passwords are stored as salted scrypt hashes in the form {@code scrypt$N$r$p$salt$hash}. Accounts from
+ * older versions that still contain the plain password are upgraded to a hash on their next login.
+ * Verification runs the KDF, so it should not be called on the JavaFX application thread.
+ * <p>
+ * Other processes may create accounts in the same file. Changes to the file are made while holding a
+ * lock file next to it, after reading the accounts that were appended in the meantime, and
+ * {@link #refresh()} reads them as well.
+ * <p>
+ * An account file of an older version has no {@link RecordCodec#FORMAT_HEADER}. It is read like older
+ * versions read it and rewritten with the header before an account is added to it.
+ */
+public class AccountStore {
+    private static final String SCRYPT_PREFIX = "scrypt$";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private final Path accountsFile;
+    private final Map<String, String> credentialsByUser = new LinkedHashMap<>();
+    private final FileTail tail;
+    private final SharedFileLock lock;
+    private final RecordCodec codec = new RecordCodec();
+    private final String[] parts = new String[2];
+    // whether the first line of the file was read yet, and whether it showed a file of an older version
+    private boolean formatKnown = false;
+    private boolean legacyFormat = false;
+    private final SecureRandom random = new SecureRandom();
+    // cost parameters for new hashes: N (CPU/memory cost, power of 2), r (block size), p (parallelism)
+    private int costN = 1 << 14;
+    private int blockSize = 8;
+    private int parallelism = 1;
+    // verified for unknown users, so their login takes as long as the login of existing users
+    private String dummyCredential = null;
+
+    public AccountStore(String accountsFile) {
+        this.accountsFile = Path.of(accountsFile);
+        this.tail = new FileTail(this.accountsFile);
+        this.lock = new SharedFileLock(Path.of(accountsFile + ".lock"), 0);
+    }
+
+    /**
+     * Sets the scrypt cost for new hashes. Memory use is about 128 * N * r bytes. Existing hashes keep
+     * their parameters, which are stored along with them.
+     */
+    public synchronized void setKdfParameters(int costN, int blockSize, int parallelism) {
+        if (costN < 2 || (costN & (costN - 1)) != 0) {
+            throw new IllegalArgumentException("costN must be a power of 2");
+        }
+        this.costN = costN;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        this.dummyCredential = null;
+    }
+
+    public synchronized void load() {
+        credentialsByUser.clear();
+        tail.reset();
+        formatKnown = false;
+        try {
+            tail.read(this::readAccount);
+        } catch (IOException e) {
+            System.out.println("Error reading the account file.");
+        }
+    }
+
+    /**
+     * Reads the accounts that other processes added since the last load or refresh. The whole file is read
+     * again if it was rewritten in the meantime.
+     */
+    public synchronized void refresh() {
+        try {
+            if (tail.read(this::readAccount)) {
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading the account file.");
+            return;
+        }
+        load();
+    }
+
+    private void readAccount(String line) {
+        if (!formatKnown) {
+            readFormat(line);
+            if (!legacyFormat) {
+                return;
+            }
+        }
+        int count = legacyFormat ? codec.parseLegacy(line, 0, parts) : codec.parse(line, 0, parts);
+        if (count == 2) {
+            credentialsByUser.put(parts[0], parts[1]);
+        }
+    }
+
+    public synchronized boolean isUsernameTaken(String username) {
+        return credentialsByUser.containsKey(username);
+    }
+
+    public synchronized int size() {
+        return credentialsByUser.size();
+    }
+
+    /**
+     * Creates the account and appends it to the accounts file. Returns false if the name is taken.
+     */
+    public boolean createAccount(String username, String password) {
+        String credential = hash(password);
+        synchronized (this) {
+            try {
+                lock.lock();
+            } catch (IOException e) {
+                System.out.println("Error saving the account.");
+                return false;
+            }
+            try {
+                // another process may have taken the name in the meantime
+                refresh();
+                if (credentialsByUser.containsKey(username)) {
+                    return false;
+                }
+                if (formatKnown && legacyFormat) {
+                    // the accounts of the older version are written in the current format along with it
+                    credentialsByUser.put(username, credential);
+                    try {
+                        rewrite();
+                    } catch (IOException e) {
+                        credentialsByUser.remove(username);
+                        System.out.println("Error saving the account.");
+                        return false;
+                    }
+                    return true;
+                }
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(accountsFile.toFile(), true))) {
+                    if (!formatKnown) {
+                        // a new file
+                        writer.write(RecordCodec.FORMAT_HEADER);
+                        writer.newLine();
+                    }
+                    RecordCodec.append(writer, username, credential);
+                    writer.newLine();
+                } catch (IOException e) {
+                    System.out.println("Error saving the account.");
+                    return false;
+                }
+                credentialsByUser.put(username, credential);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Checks the password in constant time. Plain passwords from older versions are replaced by a hash
+     * once they were verified.
+     */
+    public boolean verify(String username, String password) {
+        String credential;
+        synchronized (this) {
+            credential = credentialsByUser.get(username);
+        }
+        if (credential == null) {
+            matches(getDummyCredential(), password);
+            return false;
+        }
+        if (!credential.startsWith(SCRYPT_PREFIX)) {
+            boolean valid = MessageDigest.isEqual(credential.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+            if (valid) {
+                upgrade(username, credential, hash(password));
+            }
+            return valid;
+        }
+        return matches(credential, password);
+    }
+
+    /**
+     * Deletes all accounts and the accounts file.
+     */
+    public synchronized void clear() throws IOException {
+        lock.lock();
+        try {
+            credentialsByUser.clear();
+            Files.deleteIfExists(accountsFile);
+            tail.reset();
+            formatKnown = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private synchronized void upgrade(String username, String oldCredential, String newCredential) {
+        try {
+            lock.lock();
+        } catch (IOException e) {
+            System.out.println("Error saving the account.");
+            return;
+        }
+        try {
+            // the file is rewritten, accounts that other processes appended must not get lost
+            refresh();
+            if (!oldCredential.equals(credentialsByUser.get(username))) {
+                return;
+            }
+            credentialsByUser.put(username, newCredential);
+            rewrite();
+        } catch (IOException e) {
+            System.out.println("Error saving the account.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // replaces the file by the accounts in memory, while holding the lock
+    private void rewrite() throws IOException {
+        Path tempFile = accountsFile.resolveSibling(accountsFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+            writer.write(RecordCodec.FORMAT_HEADER);
+            writer.newLine();
+            for (Map.Entry<String, String> account : credentialsByUser.entrySet()) {
+                RecordCodec.append(writer, account.getKey(), account.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, accountsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rewritten file contains exactly the accounts in memory
+        tail.reset();
+        formatKnown = false;
+        tail.read(this::readFormat);
+    }
+
+    // the first line is the header, unless the file was written by an older version
+    private void readFormat(String line) {
+        if (!formatKnown) {
+            formatKnown = true;
+            legacyFormat = !line.equals(RecordCodec.FORMAT_HEADER);
+        }
+    }
+
+    private String hash(String password) {
+        int n;
+        int r;
+        int p;
+        byte[] salt = new byte[SALT_LENGTH];
+        synchronized (this) {
+            n = costN;
+            r = blockSize;
+            p = parallelism;
+            random.nextBytes(salt);
+        }
+        byte[] hash = SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), salt, n, r, p, HASH_LENGTH);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return SCRYPT_PREFIX + n + "$" + r + "$" + p + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    private static boolean matches(String credential, String password) {
+        String[] parts = credential.split("\\$");
+        if (parts.length != 6) {
+            return false;
+        }
+        try {
+            int n = Integer.parseInt(parts[1]);
+            int r = Integer.parseInt(parts[2]);
+            int p = Integer.parseInt(parts[3]);
+            byte[] salt = Base64.getDecoder().decode(parts[4]);
+            byte[] expected = Base64.getDecoder().decode(parts[5]);
+            byte[] actual = SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), salt, n, r, p, expected.length);
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid password hash in the account file.");
+            return false;
+        }
+    }
+
+    private String getDummyCredential() {
+        synchronized (this) {
+            if (dummyCredential != null) {
+                return dummyCredential;
+            }
+        }
+        String credential = hash("");
+        synchronized (this) {
+            dummyCredential = credential;
+        }
+        return credential;
+    }
+}
@@ -0,0 +1,13 @@
+package main;
+
+/**
+ * Notified by {@link ImageGenerator#generateImages} whenever a job of a batch has finished.
+ */
+@FunctionalInterface
+public interface BatchProgressListener {
+
+    /**
+     * Called from a worker thread. imagePath is null if the job failed after all attempts.
+     */
+    void jobFinished(ImageJob job, String imagePath, int completedJobs, int totalJobs);
+}
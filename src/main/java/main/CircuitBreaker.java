@@ -0,0 +1,103 @@
+package main;
+
+import java.time.Duration;
+
+/**
+ * Circuit breaker for one endpoint of the inference server.
+ * <p>
+ * While CLOSED every call is allowed. After failureThreshold failed or slow calls in a row it OPENs and
+ * rejects all calls, so callers fail fast instead of waiting for timeouts. Once openDuration has passed it
+ * lets a single probe call through (HALF_OPEN): if the probe succeeds the breaker closes again, otherwise
+ * it stays open for another openDuration.
+ * <p>
+ * Every call allowed by {@link #tryAcquire()} has to be reported with {@link #recordSuccess(long)},
+ * {@link #recordFailure()} or {@link #release()}.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean probeInFlight = false;
+
+    public CircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("failureThreshold must be at least 1");
+        }
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = slowCallThreshold.toNanos();
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Returns whether a call may be made now.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED -> {
+                return true;
+            }
+            case OPEN -> {
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                return true;
+            }
+            default -> {
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reports a successful call that took durationNanos. A call slower than the slow call threshold counts
+     * as a failure, since the server is probably overloaded.
+     */
+    public synchronized void recordSuccess(long durationNanos) {
+        if (durationNanos > slowCallNanos) {
+            recordFailure();
+            return;
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                System.out.println("Circuit opened after " + consecutiveFailures + " failed calls.");
+            }
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Gives back a permit without a result, e.g. when the call was cancelled by the caller.
+     */
+    public synchronized void release() {
+        probeInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,298 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Command line interface of the password manager. It works on the same files as the UI, but does not start
+ * the JavaFX toolkit, so it can be used from scripts and shell loops.
+ * <p>
+ * Every command works on the entries of one user and asks for the account password, or reads it from the
+ * environment variable {@code PASSWORD_MANAGER_PASSWORD} when there is no console. Input is read line by
+ * line from stdin and output is streamed to stdout, one entry per line in the format of
+ * {@link RecordCodec}. The UI and other commands may run at the same time: the stores coordinate their
+ * writes through lock files, and a running UI shows the changes right away.
+ */
+public class Cli {
+    static final String ACCOUNTS_FILE = "accounts.txt";
+    static final String PASSWORDS_FILE = "passwords.txt";
+    static final String PASSWORDS_LOG_FILE = "passwords.log";
+    static final String VAULT_FILE = "passwords.vault";
+    static final String IMAGES_DIRECTORY = "images/";
+    static final String PASSWORD_VARIABLE = "PASSWORD_MANAGER_PASSWORD";
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm");
+
+    private static final List<String> COMMANDS = List.of("add", "list", "delete", "import", "export",
+            "regenerate-images", "regenerate-missing", "convert-vault");
+    private static final String USAGE = """
+            Usage: <command> <username> [arguments]
+              add <username> <website>             adds an entry, the password is read from stdin
+              list <username> [--passwords]        prints website,date,image (and the password) of every entry
+              delete <username> [website...]       deletes the entries of the websites, read from stdin if none are given
+              import <username> [--format json|csv] [--generate-images]
+                                                   adds the entries read from stdin, skipping duplicates
+              export <username> [--format json|csv]
+                                                   prints every entry with website, password, date and image
+              regenerate-images <username> [concurrency]
+                                                   generates the images of entries without an image
+              convert-vault <username>             copies the entries into the encrypted vault file""";
+
+    private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+    private final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+    public static void main(String[] args) {
+        System.exit(new Cli().run(args));
+    }
+
+    public static boolean isCommand(String name) {
+        return COMMANDS.contains(name);
+    }
+
+    /**
+     * Runs the command and returns the exit status.
+     */
+    public int run(String[] args) {
+        if (args.length < 2 || !isCommand(args[0])) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        String command = args[0];
+        String username = args[1];
+        String[] arguments = Arrays.copyOfRange(args, 2, args.length);
+
+        String password = readPassword(username);
+        AccountStore accounts = new AccountStore(ACCOUNTS_FILE);
+        accounts.load();
+        if (password == null || !accounts.verify(username, password)) {
+            System.err.println("Invalid username or password.");
+            return 1;
+        }
+
+        // changes of bulk commands are fsynced once when the store is closed
+        WriteAheadLog.DurabilityMode durabilityMode = command.equals("add") || command.equals("delete")
+                ? WriteAheadLog.DurabilityMode.GROUP : WriteAheadLog.DurabilityMode.ASYNC;
+        CredentialStore store = new CredentialStore(PASSWORDS_FILE, PASSWORDS_LOG_FILE, durabilityMode);
+        store.load();
+        ImageStore imageStore = new ImageStore(IMAGES_DIRECTORY);
+        imageStore.load();
+        try {
+            return switch (command) {
+                case "add" -> add(store, username, arguments);
+                case "list" -> list(store, username, arguments);
+                case "delete" -> delete(store, imageStore, username, arguments);
+                case "import" -> importEntries(store, imageStore, username, arguments);
+                case "export" -> export(store, username, arguments);
+                case "regenerate-images", "regenerate-missing" -> regenerateImages(store, imageStore, username, arguments);
+                case "convert-vault" -> convertToVault(store, username, password);
+                default -> 2;
+            };
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            out.flush();
+            imageStore.close();
+            store.close();
+        }
+    }
+
+    private int add(CredentialStore store, String username, String[] arguments) throws IOException {
+        if (arguments.length != 1) {
+            System.err.println("Usage: add <username> <website>");
+            return 2;
+        }
+        String password = in.readLine();
+        if (password == null || password.isEmpty()) {
+            System.err.println("No password given on stdin.");
+            return 1;
+        }
+        if (!store.add(newRecord(username, arguments[0], password))) {
+            System.err.println("The entry already exists.");
+            return 1;
+        }
+        return 0;
+    }
+
+    private int list(CredentialStore store, String username, String[] arguments) {
+        boolean showPasswords = Arrays.asList(arguments).contains("--passwords");
+        for (CredentialRecord record : store.entriesFor(username)) {
+            if (showPasswords) {
+                out.println(RecordCodec.join(record.website(), record.password(), record.date(), record.imagePath()));
+            } else {
+                out.println(RecordCodec.join(record.website(), record.date(), record.imagePath()));
+            }
+        }
+        return 0;
+    }
+
+    private int delete(CredentialStore store, ImageStore imageStore, String username, String[] arguments) throws IOException {
+        Set<String> websites = new HashSet<>(Arrays.asList(arguments));
+        if (websites.isEmpty()) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isBlank()) {
+                    websites.add(line.strip());
+                }
+            }
+        }
+        int deleted = 0;
+        for (String website : websites) {
+            for (CredentialRecord record : store.findByWebsite(username, website)) {
+                if (store.delete(record)) {
+                    deleted++;
+                    // an image the store does not contain was never counted, e.g. one of an imported entry
+                    if (imageStore.contains(record.imagePath())) {
+                        imageStore.release(record.imagePath());
+                    } else if (!MissingImageRegenerator.isImageMissing(record, imageStore)) {
+                        Files.deleteIfExists(Path.of(record.imagePath()));
+                    }
+                }
+            }
+        }
+        out.println("Deleted " + deleted + " entries.");
+        return 0;
+    }
+
+    private int importEntries(CredentialStore store, ImageStore imageStore, String username, String[] arguments) throws IOException {
+        EntryTransfer.Format format = parseFormat(arguments);
+        if (format == null) {
+            return 2;
+        }
+        EntryTransfer.ImportResult result = new EntryTransfer(store).importEntries(username, in, format);
+        out.println("Imported " + result.imported() + " entries, skipped " + result.duplicates()
+                + " duplicates and " + result.invalid() + " invalid entries.");
+        if (Arrays.asList(arguments).contains("--generate-images") && result.imported() > 0) {
+            out.flush();
+            return regenerateImages(store, imageStore, username, new String[0]);
+        }
+        return 0;
+    }
+
+    private int export(CredentialStore store, String username, String[] arguments) throws IOException {
+        EntryTransfer.Format format = parseFormat(arguments);
+        if (format == null) {
+            return 2;
+        }
+        new EntryTransfer(store).export(username, out, format);
+        return 0;
+    }
+
+    // the value of --format, CSV by default
+    private static EntryTransfer.Format parseFormat(String[] arguments) {
+        int index = Arrays.asList(arguments).indexOf("--format");
+        if (index < 0) {
+            return EntryTransfer.Format.CSV;
+        }
+        if (index + 1 < arguments.length) {
+            try {
+                return EntryTransfer.Format.valueOf(arguments[index + 1].toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // reported below
+            }
+        }
+        System.err.println("--format must be json or csv.");
+        return null;
+    }
+
+    private int regenerateImages(CredentialStore store, ImageStore imageStore, String username, String[] arguments) {
+        Integer requestedConcurrency = null;
+        if (arguments.length > 0) {
+            requestedConcurrency = parseConcurrency(arguments[0]);
+            if (requestedConcurrency == null || arguments.length > 1) {
+                System.err.println("Usage: regenerate-images <username> [concurrency]");
+                return 2;
+            }
+        }
+        ImageGenerator generator = new ImageGenerator();
+        generator.setImageStore(imageStore);
+        try {
+            int concurrency = requestedConcurrency != null ? requestedConcurrency : generator.getMaxConcurrentGenerations();
+            MissingImageRegenerator regenerator = new MissingImageRegenerator(store, generator);
+            out.println(regenerator.findEntriesWithMissingImages(username).size() + " entries of " + username + " have no image.");
+            out.flush();
+            int regenerated = regenerator.regenerate(username, concurrency, (job, imagePath, completed, total) -> {
+                synchronized (out) {
+                    out.println("[" + completed + "/" + total + "] " + job.outputFilename() + (imagePath == null ? " failed" : " done"));
+                    out.flush();
+                }
+            }).join();
+            out.println("Regenerated " + regenerated + " images.");
+            return 0;
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    // a positive number, or null
+    private static Integer parseConcurrency(String argument) {
+        try {
+            int concurrency = Integer.parseInt(argument);
+            return concurrency > 0 ? concurrency : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entries of the user into the encrypted vault file, sealed with the account password, and
+     * reads them back to compare the load times.
+     */
+    private int convertToVault(CredentialStore store, String username, String password) throws IOException {
+        try {
+            // only the lines of this user are decoded, the entries of other users are skipped
+            long start = System.nanoTime();
+            List<CredentialRecord> records = CredentialStore.readUser(PASSWORDS_FILE, PASSWORDS_LOG_FILE, username);
+            long csvNanos = System.nanoTime() - start;
+
+            VaultFile vault = VaultFile.open(Path.of(VAULT_FILE));
+            vault.writeUser(username, password, records);
+
+            start = System.nanoTime();
+            List<VaultEntry> entries = VaultFile.open(Path.of(VAULT_FILE)).readUser(username, password);
+            long vaultNanos = System.nanoTime() - start;
+            out.println("Wrote " + entries.size() + " entries of " + username + " to " + VAULT_FILE + ".");
+            out.printf("Load time: %.1f ms from %s, %.1f ms from %s (including key derivation).%n",
+                    csvNanos / 1e6, PASSWORDS_FILE, vaultNanos / 1e6, VAULT_FILE);
+            return 0;
+        } catch (GeneralSecurityException e) {
+            System.err.println("Error writing the vault file.");
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    private static CredentialRecord newRecord(String username, String website, String password) {
+        // the image is generated later with regenerate-images
+        return new CredentialRecord(username, website, password, LocalDateTime.now().format(DATE_FORMAT), "None");
+    }
+
+    private String readPassword(String username) {
+        String password = System.getenv(PASSWORD_VARIABLE);
+        if (password != null) {
+            return password;
+        }
+        Console console = System.console();
+        if (console == null) {
+            System.err.println("No console, set " + PASSWORD_VARIABLE + " to pass the password.");
+            return null;
+        }
+        char[] chars = console.readPassword("Password of " + username + ": ");
+        return chars == null ? null : new String(chars);
+    }
+}
@@ -0,0 +1,66 @@
+package main;
+
+import java.io.IOException;
+
+/**
+ * One stored password entry of a user, as it is kept in the credential store and written to disk.
+ */
+public record CredentialRecord(String username, String website, String password, String date, String imagePath) {
+    public static final int FIELD_COUNT = 5;
+
+    /**
+     * Parses a line of the form username,website,password,date,imagePath.
+     * Returns null if the line does not have exactly five fields.
+     */
+    public static CredentialRecord fromCsvLine(CharSequence line) {
+        return fromCsvLine(line, 0);
+    }
+
+    /**
+     * Parses the record that starts at index start of the line, e.g. after the prefix of a log record.
+     */
+    public static CredentialRecord fromCsvLine(CharSequence line, int start) {
+        String[] fields = new String[FIELD_COUNT];
+        if (RecordCodec.local().parse(line, start, fields) != FIELD_COUNT) {
+            return null;
+        }
+        return fromFields(fields, 0);
+    }
+
+    /**
+     * Parses a line of a snapshot written by an older version, see {@link RecordCodec#parseLegacy}.
+     */
+    public static CredentialRecord fromLegacyCsvLine(CharSequence line) {
+        String[] fields = new String[FIELD_COUNT];
+        if (RecordCodec.local().parseLegacy(line, 0, fields) != FIELD_COUNT) {
+            return null;
+        }
+        return fromFields(fields, 0);
+    }
+
+    /**
+     * Creates a record from the five fields starting at offset.
+     */
+    public static CredentialRecord fromFields(String[] fields, int offset) {
+        return new CredentialRecord(fields[offset], fields[offset + 1], fields[offset + 2], fields[offset + 3], fields[offset + 4]);
+    }
+
+    public CredentialRecord withWebsite(String website) {
+        return new CredentialRecord(username, website, password, date, imagePath);
+    }
+
+    public CredentialRecord withImagePath(String imagePath) {
+        return new CredentialRecord(username, website, password, date, imagePath);
+    }
+
+    public String toCsvLine() {
+        return RecordCodec.join(username, website, password, date, imagePath);
+    }
+
+    /**
+     * Writes the record as one line without line terminator.
+     */
+    public void appendCsvLine(Appendable out) throws IOException {
+        RecordCodec.append(out, username, website, password, date, imagePath);
+    }
+}
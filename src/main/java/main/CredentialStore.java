@@ -0,0 +1,617 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of all password entries, loaded once at startup.
+ * <p>
+ * The entries are kept in a snapshot file (one entry per line) plus a {@link WriteAheadLog} of
+ * additions ("+,"), deletions ("-,") and edits ("~," old fields, new fields). Changes only append
+ * to the log. Once the log grows beyond the compaction threshold it is moved aside and a background
+ * thread writes a new snapshot through a temp file that atomically replaces the old one.
+ * <p>
+ * Several processes can share the files. Appends to the log are serialized by a lock file next to the
+ * snapshot, and only one process compacts at a time. {@link #refresh()} applies the records that other
+ * processes appended since the last load or refresh and reports them to the {@link ChangeListener}; once
+ * another process compacted the store, everything is reloaded instead.
+ */
+public class CredentialStore {
+    private static final String ADD_PREFIX = "+,";
+    private static final String DELETE_PREFIX = "-,";
+    private static final String EDIT_PREFIX = "~,";
+    private static final Metrics.Timer LOAD_TIMER = Metrics.timer("entries.load");
+    private static final Metrics.Timer ADD_TIMER = Metrics.timer("entries.add");
+    private static final Metrics.Timer DELETE_TIMER = Metrics.timer("entries.delete");
+    private static final Metrics.Timer UPDATE_TIMER = Metrics.timer("entries.update");
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    // log that is being folded into the snapshot by the compactor
+    private final Path compactingLogFile;
+    private final WriteAheadLog log;
+    private final Map<String, Set<CredentialRecord>> entriesByUser = new HashMap<>();
+    private final Map<UserWebsite, Set<CredentialRecord>> entriesByWebsite = new HashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("credential-compactor").daemon(true).factory());
+    private Future<?> runningCompaction = null;
+    private int logRecords = 0;
+    private int compactionThreshold = 1000;
+    // held by the process that writes to the log, and by the process that compacts from the rotation of
+    // the log until the compacting log is deleted
+    private final SharedFileLock appendLock;
+    private final SharedFileLock compactionLock;
+    private ChangeListener changeListener = null;
+
+    private record UserWebsite(String username, String website) {
+    }
+
+    /**
+     * Changes made by other processes. Called while the store is locked, so implementations should only
+     * hand the change over, e.g. to the JavaFX thread.
+     */
+    public interface ChangeListener {
+        void entryAdded(CredentialRecord record);
+
+        void entryRemoved(CredentialRecord record);
+
+        /**
+         * All entries were reloaded, since the files were compacted or cleared by another process.
+         */
+        void entriesReloaded();
+    }
+
+    public CredentialStore(String snapshotFile, String logFile) {
+        this(snapshotFile, logFile, WriteAheadLog.DurabilityMode.GROUP);
+    }
+
+    public CredentialStore(String snapshotFile, String logFile, WriteAheadLog.DurabilityMode durabilityMode) {
+        this.snapshotFile = Path.of(snapshotFile);
+        this.logFile = Path.of(logFile);
+        this.compactingLogFile = Path.of(logFile + ".compacting");
+        this.log = new WriteAheadLog(this.logFile, durabilityMode);
+        Path lockFile = Path.of(snapshotFile + ".lock");
+        this.appendLock = new SharedFileLock(lockFile, 0);
+        this.compactionLock = new SharedFileLock(lockFile, 1);
+        this.log.setSharedLock(appendLock);
+    }
+
+    public void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public synchronized void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Reads the snapshot and replays the logs on top of it.
+     */
+    public void load() {
+        synchronized (this) {
+            awaitCompaction();
+        }
+        // no other process may replace the snapshot or the logs while they are read; the compaction lock is
+        // always taken before the store lock, since another process may hold it for a while
+        boolean locked = lockCompaction();
+        try {
+            synchronized (this) {
+                reload();
+            }
+        } finally {
+            if (locked) {
+                compactionLock.unlock();
+            }
+        }
+    }
+
+    private void reload() {
+        long start = Metrics.startTimer();
+        entriesByUser.clear();
+        entriesByWebsite.clear();
+        logRecords = 0;
+
+        if (Files.exists(snapshotFile)) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(snapshotFile.toFile()))) {
+                // a snapshot of an older version has no header, it is rewritten with one by the next compaction
+                String line = reader.readLine();
+                boolean legacy = line != null && !line.equals(RecordCodec.FORMAT_HEADER);
+                if (!legacy) {
+                    line = reader.readLine();
+                }
+                for (; line != null; line = reader.readLine()) {
+                    CredentialRecord record = legacy ? CredentialRecord.fromLegacyCsvLine(line) : CredentialRecord.fromCsvLine(line);
+                    if (record != null) {
+                        index(record);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error loading the entries.");
+            }
+        }
+
+        try {
+            // a left over compacting log means the last compaction did not finish, replaying it again is harmless
+            WriteAheadLog.replay(compactingLogFile, this::replay);
+            log.replay(line -> {
+                replay(line);
+                logRecords++;
+            });
+        } catch (IOException e) {
+            System.out.println("Error replaying the entry log.");
+        }
+        LOAD_TIMER.stop(start);
+    }
+
+    private void replay(String line) {
+        replay(line, this::index, this::unindex);
+    }
+
+    /**
+     * Applies the changes that other processes made since the last load or refresh. Only the records they
+     * appended to the log are read. If the log was replaced in the meantime, everything is reloaded once
+     * the compaction of the other process has finished, without blocking the store while waiting for it.
+     */
+    public void refresh() {
+        synchronized (this) {
+            try {
+                if (log.readAppended(this::applyAppended)) {
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading the changes of the entries.");
+                return;
+            }
+        }
+        if (!lockCompaction()) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                // another refresh may have reloaded in the meantime
+                try {
+                    if (log.readAppended(this::applyAppended)) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error reading the changes of the entries.");
+                    return;
+                }
+                reloadChanged();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    // a record appended by another process
+    private void applyAppended(String line) {
+        logRecords++;
+        replay(line, record -> {
+            if (index(record) && changeListener != null) {
+                changeListener.entryAdded(record);
+            }
+        }, record -> {
+            if (unindex(record) && changeListener != null) {
+                changeListener.entryRemoved(record);
+            }
+        });
+    }
+
+    private void reloadChanged() {
+        try {
+            // records that are still pending would be missing in the reloaded files
+            log.flush();
+        } catch (IOException e) {
+            System.out.println("Error when saving the entries.");
+        }
+        reload();
+        if (changeListener != null) {
+            changeListener.entriesReloaded();
+        }
+    }
+
+    // applies a log record through the given add and remove operations
+    private static void replay(String line, Consumer<CredentialRecord> add, Consumer<CredentialRecord> remove) {
+        if (line.startsWith(EDIT_PREFIX)) {
+            String[] parts = new String[2 * CredentialRecord.FIELD_COUNT];
+            if (RecordCodec.local().parse(line, 2, parts) == parts.length) {
+                remove.accept(CredentialRecord.fromFields(parts, 0));
+                add.accept(CredentialRecord.fromFields(parts, CredentialRecord.FIELD_COUNT));
+            }
+            return;
+        }
+        if (line.length() < 2) {
+            return;
+        }
+        CredentialRecord record = CredentialRecord.fromCsvLine(line, 2);
+        if (record == null) {
+            return;
+        }
+        if (line.startsWith(ADD_PREFIX)) {
+            add.accept(record);
+        } else if (line.startsWith(DELETE_PREFIX)) {
+            remove.accept(record);
+        }
+    }
+
+    /**
+     * Reads the entries of one user directly from the snapshot and log files, without loading the store.
+     * The files are memory mapped and only the lines of the user are decoded, which makes this much cheaper
+     * than {@link #load()} for tools that work on a single user of a large multi-user store. Must not be used
+     * while another process compacts the store.
+     */
+    public static List<CredentialRecord> readUser(String snapshotFile, String logFile, String username) throws IOException {
+        Set<CredentialRecord> records = new LinkedHashSet<>();
+        byte[] prefix = (RecordCodec.encodeField(username) + RecordCodec.SEPARATOR).getBytes(StandardCharsets.UTF_8);
+        boolean legacy = RecordCodec.isLegacyFile(Path.of(snapshotFile));
+        byte[] snapshotPrefix = legacy ? (username + RecordCodec.SEPARATOR).getBytes(StandardCharsets.UTF_8) : prefix;
+        MappedLineScanner.forEachMatchingLine(Path.of(snapshotFile), 0, snapshotPrefix, true, line -> {
+            CredentialRecord record = legacy ? CredentialRecord.fromLegacyCsvLine(line) : CredentialRecord.fromCsvLine(line);
+            if (record != null) {
+                records.add(record);
+            }
+        });
+        // every log record starts with a two character prefix, an edit never changes the user
+        Consumer<String> replay = line -> replay(line, records::add, records::remove);
+        MappedLineScanner.forEachMatchingLine(Path.of(logFile + ".compacting"), 2, prefix, false, replay);
+        MappedLineScanner.forEachMatchingLine(Path.of(logFile), 2, prefix, false, replay);
+        return new ArrayList<>(records);
+    }
+
+    public synchronized List<CredentialRecord> entriesFor(String username) {
+        Set<CredentialRecord> records = entriesByUser.get(username);
+        return records == null ? Collections.emptyList() : new ArrayList<>(records);
+    }
+
+    public synchronized List<CredentialRecord> findByWebsite(String username, String website) {
+        Set<CredentialRecord> records = entriesByWebsite.get(new UserWebsite(username, website));
+        return records == null ? Collections.emptyList() : new ArrayList<>(records);
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Set<CredentialRecord> records : entriesByUser.values()) {
+            size += records.size();
+        }
+        return size;
+    }
+
+    /**
+     * Adds the record. Returns false if the store already contains an equal record, which is not added again.
+     * Throws if the record could not be saved, it is then not added either.
+     */
+    public boolean add(CredentialRecord record) throws IOException {
+        long start = Metrics.startTimer();
+        long sequence;
+        Runnable rollback = () -> unindex(record);
+        synchronized (this) {
+            if (!index(record)) {
+                return false;
+            }
+            sequence = appendToLog(ADD_PREFIX + record.toCsvLine(), rollback);
+        }
+        awaitDurable(sequence, rollback);
+        ADD_TIMER.stop(start);
+        return true;
+    }
+
+    /**
+     * Adds all records that are not in the store yet and waits once until all of them are durable, instead of
+     * once per record. Returns the number of added records. Throws if they could not be saved, none of them
+     * is added then.
+     */
+    public int addAll(Collection<CredentialRecord> records) throws IOException {
+        long sequence = -1;
+        List<CredentialRecord> added = new ArrayList<>();
+        Runnable rollback = () -> added.forEach(this::unindex);
+        synchronized (this) {
+            for (CredentialRecord record : records) {
+                if (index(record)) {
+                    added.add(record);
+                    sequence = appendToLog(ADD_PREFIX + record.toCsvLine(), rollback);
+                }
+            }
+        }
+        awaitDurable(sequence, rollback);
+        return added.size();
+    }
+
+    /**
+     * Removes the record. Returns false if the store did not contain it. Throws if the deletion could not be
+     * saved, the record is then kept.
+     */
+    public boolean delete(CredentialRecord record) throws IOException {
+        long start = Metrics.startTimer();
+        long sequence;
+        Runnable rollback = () -> index(record);
+        synchronized (this) {
+            if (!unindex(record)) {
+                return false;
+            }
+            sequence = appendToLog(DELETE_PREFIX + record.toCsvLine(), rollback);
+        }
+        awaitDurable(sequence, rollback);
+        DELETE_TIMER.stop(start);
+        return true;
+    }
+
+    /**
+     * Replaces oldRecord with newRecord. Returns false if the store did not contain oldRecord. Throws if the
+     * change could not be saved, oldRecord is then kept.
+     */
+    public boolean update(CredentialRecord oldRecord, CredentialRecord newRecord) throws IOException {
+        long start = Metrics.startTimer();
+        long sequence;
+        synchronized (this) {
+            if (!unindex(oldRecord)) {
+                return false;
+            }
+            sequence = replace(oldRecord, newRecord);
+        }
+        awaitDurable(sequence, () -> {
+            unindex(newRecord);
+            index(oldRecord);
+        });
+        UPDATE_TIMER.stop(start);
+        return true;
+    }
+
+    /**
+     * Points the entry of the user that has oldImagePath to newImagePath. The entry is looked up while the
+     * store is locked, so edits of other fields in the meantime are kept. Returns false if no entry has
+     * oldImagePath anymore; if both paths are equal only that is checked. Throws if the change could not be
+     * saved, the entry then keeps oldImagePath.
+     */
+    public boolean replaceImagePath(String username, String oldImagePath, String newImagePath) throws IOException {
+        long start = Metrics.startTimer();
+        long sequence;
+        CredentialRecord oldRecord = null;
+        CredentialRecord newRecord;
+        synchronized (this) {
+            for (CredentialRecord record : entriesByUser.getOrDefault(username, Collections.emptySet())) {
+                if (oldImagePath.equals(record.imagePath())) {
+                    oldRecord = record;
+                    break;
+                }
+            }
+            if (oldRecord == null) {
+                return false;
+            }
+            if (oldImagePath.equals(newImagePath)) {
+                return true;
+            }
+            newRecord = oldRecord.withImagePath(newImagePath);
+            unindex(oldRecord);
+            sequence = replace(oldRecord, newRecord);
+        }
+        CredentialRecord previous = oldRecord;
+        awaitDurable(sequence, () -> {
+            unindex(newRecord);
+            index(previous);
+        });
+        UPDATE_TIMER.stop(start);
+        return true;
+    }
+
+    // indexes newRecord in place of the already unindexed oldRecord and logs the edit
+    private long replace(CredentialRecord oldRecord, CredentialRecord newRecord) throws IOException {
+        boolean indexed = index(newRecord);
+        return appendToLog(EDIT_PREFIX + oldRecord.toCsvLine() + RecordCodec.SEPARATOR + newRecord.toCsvLine(), () -> {
+            if (indexed) {
+                unindex(newRecord);
+            }
+            index(oldRecord);
+        });
+    }
+
+    /**
+     * Removes all entries and deletes the snapshot and log files.
+     */
+    public void clear() throws IOException {
+        synchronized (this) {
+            awaitCompaction();
+        }
+        compactionLock.lock();
+        try {
+            synchronized (this) {
+                entriesByUser.clear();
+                entriesByWebsite.clear();
+                logRecords = 0;
+                log.delete();
+                Files.deleteIfExists(compactingLogFile);
+                Files.deleteIfExists(snapshotFile);
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the current log aside and writes a new snapshot in the background.
+     * Returns immediately if a compaction is already running, also in another process.
+     */
+    public synchronized void compact() {
+        if (runningCompaction != null && !runningCompaction.isDone()) {
+            return;
+        }
+        try {
+            if (!compactionLock.tryLock()) {
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Error when compacting the entries.");
+            return;
+        }
+        try {
+            // the snapshot is written from memory, so the changes of other processes have to be applied first
+            if (!log.readAppended(this::applyAppended)) {
+                reloadChanged();
+            }
+            // if an earlier compaction failed its log is still waiting, the current log then stays in place
+            // and is replayed on top of the new snapshot, which is harmless
+            if (!Files.exists(compactingLogFile)) {
+                log.rotateTo(compactingLogFile, this::applyAppended);
+                logRecords = 0;
+            }
+        } catch (IOException e) {
+            System.out.println("Error when compacting the entries.");
+            compactionLock.unlock();
+            return;
+        }
+        List<CredentialRecord> records = new ArrayList<>();
+        for (Set<CredentialRecord> userRecords : entriesByUser.values()) {
+            records.addAll(userRecords);
+        }
+        runningCompaction = compactor.submit(() -> {
+            try {
+                writeSnapshot(records);
+            } finally {
+                compactionLock.unlock();
+            }
+        });
+    }
+
+    private void writeSnapshot(List<CredentialRecord> records) {
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+                writer.write(RecordCodec.FORMAT_HEADER);
+                writer.newLine();
+                for (CredentialRecord record : records) {
+                    record.appendCsvLine(writer);
+                    writer.newLine();
+                }
+            }
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // only now the compacting log is part of the snapshot
+            Files.deleteIfExists(compactingLogFile);
+        } catch (IOException e) {
+            System.out.println("Error when compacting the entries.");
+        }
+    }
+
+    /**
+     * Compacts the store if the log is not empty and waits until everything is on disk.
+     */
+    public synchronized void close() {
+        awaitCompaction();
+        if (logRecords > 0) {
+            compact();
+        }
+        awaitCompaction();
+        compactor.shutdown();
+        try {
+            log.close();
+            appendLock.close();
+            compactionLock.close();
+        } catch (IOException e) {
+            System.out.println("Error when closing the entry log.");
+        }
+    }
+
+    private boolean lockCompaction() {
+        try {
+            compactionLock.lock();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error locking the entries.");
+            return false;
+        }
+    }
+
+    private void awaitCompaction() {
+        if (runningCompaction == null) {
+            return;
+        }
+        try {
+            runningCompaction.get();
+        } catch (Exception e) {
+            System.out.println("Error when waiting for the compaction.");
+        }
+        runningCompaction = null;
+    }
+
+    // the store lock is released before waiting, so concurrent changes can share one group commit; the
+    // rollback undoes the change of the index if the record could not be appended
+    private long appendToLog(String line, Runnable rollback) throws IOException {
+        long sequence;
+        try {
+            sequence = log.enqueue(line);
+            logRecords++;
+        } catch (IOException e) {
+            rollback.run();
+            throw e;
+        }
+        if (logRecords >= compactionThreshold) {
+            compact();
+        }
+        return sequence;
+    }
+
+    // a failed batch is cut off the log, so its change is undone in the index as well
+    private void awaitDurable(long sequence, Runnable rollback) throws IOException {
+        if (sequence < 0) {
+            return;
+        }
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            synchronized (this) {
+                rollback.run();
+            }
+            throw e;
+        }
+    }
+
+    private boolean index(CredentialRecord record) {
+        boolean added = entriesByUser.computeIfAbsent(record.username(), _ -> new LinkedHashSet<>()).add(record);
+        if (added) {
+            entriesByWebsite.computeIfAbsent(new UserWebsite(record.username(), record.website()), _ -> new LinkedHashSet<>())
+                    .add(record);
+        }
+        return added;
+    }
+
+    private boolean unindex(CredentialRecord record) {
+        Set<CredentialRecord> records = entriesByUser.get(record.username());
+        if (records == null || !records.remove(record)) {
+            return false;
+        }
+        if (records.isEmpty()) {
+            entriesByUser.remove(record.username());
+        }
+        UserWebsite key = new UserWebsite(record.username(), record.website());
+        Set<CredentialRecord> websiteRecords = entriesByWebsite.get(key);
+        if (websiteRecords != null) {
+            websiteRecords.remove(record);
+            if (websiteRecords.isEmpty()) {
+                entriesByWebsite.remove(key);
+            }
+        }
+        return true;
+    }
+}
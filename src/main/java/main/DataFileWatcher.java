@@ -0,0 +1,99 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches data files with a {@link WatchService} and runs a callback on its own thread when one of them
+ * was created, modified or deleted, e.g. by another instance that works on the same data directory.
+ * Events that arrive shortly after each other are combined into one call per callback. Changes made by
+ * this process are reported as well, so the callbacks have to ignore them cheaply.
+ */
+public class DataFileWatcher implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 50;
+
+    private final Path directory;
+    private final Map<Path, Runnable> callbacks = new HashMap<>();
+    private WatchService watchService = null;
+    private Thread thread = null;
+
+    public DataFileWatcher(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Runs onChange when the file with the given name in the watched directory changes. Must be called
+     * before {@link #start()}.
+     */
+    public void watch(String fileName, Runnable onChange) {
+        callbacks.put(Path.of(fileName).getFileName(), onChange);
+    }
+
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        thread = Thread.ofPlatform().name("data-file-watcher").daemon(true).start(this::run);
+    }
+
+    private void run() {
+        WatchService service = watchService;
+        try {
+            while (true) {
+                Set<Runnable> changed = new LinkedHashSet<>();
+                WatchKey key = service.take();
+                // collect what else changes in the meantime, a batch of appends causes several events
+                while (key != null) {
+                    collect(key, changed);
+                    key = service.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (Runnable callback : changed) {
+                    try {
+                        callback.run();
+                    } catch (RuntimeException e) {
+                        System.out.println("Error applying changed data files:");
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void collect(WatchKey key, Set<Runnable> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, so every file may have changed
+                changed.addAll(callbacks.values());
+            } else if (event.context() instanceof Path fileName && callbacks.containsKey(fileName)) {
+                changed.add(callbacks.get(fileName));
+            }
+        }
+        key.reset();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+}
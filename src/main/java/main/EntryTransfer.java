@@ -0,0 +1,196 @@
+package main;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bulk import and export of the entries of a user, e.g. to move them to another machine.
+ * <p>
+ * Both formats are streamed entry by entry, so a file is never held in memory as a whole:
+ * <ul>
+ *     <li>JSON: an array of objects with the fields website, password, date and imagePath</li>
+ *     <li>CSV: a header line followed by website,password,date,imagePath lines in the format of
+ *     {@link RecordCodec}. On import only website and password are required.</li>
+ * </ul>
+ * Imported entries are added to the store in batches and entries whose website and password the user
+ * already has are skipped. Entries without an image get the image path "None", so their images can be
+ * generated afterwards with {@link MissingImageRegenerator}. This also applies to images of an
+ * {@link ImageStore} ({@code pack:<hash>}): the export only names them, and the importing store does not
+ * hold a reference for the imported entry.
+ */
+public class EntryTransfer {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String CSV_HEADER = RecordCodec.join("website", "password", "date", "imagePath");
+
+    public enum Format {
+        JSON,
+        CSV
+    }
+
+    /**
+     * Counts of an import.
+     */
+    public record ImportResult(int imported, int duplicates, int invalid) {
+    }
+
+    private final CredentialStore credentialStore;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public EntryTransfer(CredentialStore credentialStore) {
+        this.credentialStore = credentialStore;
+    }
+
+    /**
+     * Sets how many entries are added to the store at once.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Writes all entries of the user. Returns the number of written entries.
+     */
+    public int export(String username, Writer out, Format format) throws IOException {
+        List<CredentialRecord> records = credentialStore.entriesFor(username);
+        if (format == Format.JSON) {
+            JsonWriter writer = new JsonWriter(out);
+            writer.setIndent("  ");
+            writer.beginArray();
+            for (CredentialRecord record : records) {
+                writer.beginObject();
+                writer.name("website").value(record.website());
+                writer.name("password").value(record.password());
+                writer.name("date").value(record.date());
+                writer.name("imagePath").value(record.imagePath());
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.flush();
+        } else {
+            out.write(CSV_HEADER);
+            out.write('\n');
+            for (CredentialRecord record : records) {
+                RecordCodec.append(out, record.website(), record.password(), record.date(), record.imagePath());
+                out.write('\n');
+            }
+            out.flush();
+        }
+        return records.size();
+    }
+
+    /**
+     * Reads entries and adds them to the user.
+     */
+    public ImportResult importEntries(String username, Reader in, Format format) throws IOException {
+        Importer importer = new Importer(username);
+        if (format == Format.JSON) {
+            importJson(new JsonReader(in), importer);
+        } else {
+            importCsv(in instanceof BufferedReader reader ? reader : new BufferedReader(in), importer);
+        }
+        importer.flush();
+        return new ImportResult(importer.imported, importer.duplicates, importer.invalid);
+    }
+
+    private static void importJson(JsonReader reader, Importer importer) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String website = null;
+            String password = null;
+            String date = null;
+            String imagePath = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "website" -> website = reader.nextString();
+                    case "password" -> password = reader.nextString();
+                    case "date" -> date = reader.nextString();
+                    case "imagePath" -> imagePath = reader.nextString();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            importer.accept(website, password, date, imagePath);
+        }
+        reader.endArray();
+    }
+
+    private static void importCsv(BufferedReader reader, Importer importer) throws IOException {
+        RecordCodec codec = new RecordCodec();
+        String[] fields = new String[4];
+        boolean firstLine = true;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            boolean header = firstLine && line.equals(CSV_HEADER);
+            firstLine = false;
+            if (header || line.isBlank()) {
+                continue;
+            }
+            int count = codec.parse(line, 0, fields);
+            if (count < 2) {
+                importer.invalid++;
+                continue;
+            }
+            importer.accept(fields[0], fields[1], count > 2 ? fields[2] : null, count > 3 ? fields[3] : null);
+        }
+    }
+
+    // collects imported entries into batches and skips duplicates
+    private class Importer {
+        private final String username;
+        private final Set<List<String>> knownEntries = new HashSet<>();
+        private final List<CredentialRecord> batch = new ArrayList<>();
+        private final String now = LocalDateTime.now().format(Cli.DATE_FORMAT);
+        private int imported = 0;
+        private int duplicates = 0;
+        private int invalid = 0;
+
+        Importer(String username) {
+            this.username = username;
+            for (CredentialRecord record : credentialStore.entriesFor(username)) {
+                knownEntries.add(List.of(record.website(), record.password()));
+            }
+        }
+
+        void accept(String website, String password, String date, String imagePath) throws IOException {
+            if (website == null || website.isEmpty() || password == null || password.isEmpty()) {
+                invalid++;
+                return;
+            }
+            if (!knownEntries.add(List.of(website, password))) {
+                duplicates++;
+                return;
+            }
+            boolean noImage = imagePath == null || imagePath.isEmpty() || ImageStore.isStored(imagePath);
+            batch.add(new CredentialRecord(username, website, password,
+                    date == null || date.isEmpty() ? now : date, noImage ? "None" : imagePath));
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            imported += credentialStore.addAll(batch);
+            batch.clear();
+        }
+    }
+}
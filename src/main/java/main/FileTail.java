@@ -0,0 +1,129 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.function.Consumer;
+
+/**
+ * Reads the lines that were appended to a file since the last read, for files that other processes
+ * append to. The file is identified by its file key, so a file that was replaced (e.g. moved aside by a
+ * compaction), deleted or truncated since the last read is noticed; its lines can then no longer be
+ * applied on top of what was read before.
+ */
+public class FileTail {
+    private final Path file;
+    private Object fileKey = null;
+    private long offset = 0;
+
+    public FileTail(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Forgets what was read, the next read starts at the beginning of the current file.
+     */
+    public void reset() {
+        fileKey = null;
+        offset = 0;
+    }
+
+    public boolean read(Consumer<String> consumer) throws IOException {
+        return read(consumer, Collections.emptyNavigableMap());
+    }
+
+    /**
+     * Passes the complete lines appended since the last read to the consumer. The byte ranges in skipped
+     * (start to end) are not read, ranges that were passed are removed from it. An incomplete last line is
+     * passed by a later read once it is complete. Returns false without reading anything if the file is no
+     * longer the one that was read before.
+     */
+    public boolean read(Consumer<String> consumer, NavigableMap<Long, Long> skipped) throws IOException {
+        Object currentKey = fileKey(file);
+        if (currentKey == null) {
+            return fileKey == null;
+        }
+        if (fileKey != null && !fileKey.equals(currentKey)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // the file may have been replaced while it was opened
+            if (!currentKey.equals(fileKey(file)) || channel.size() < offset) {
+                return false;
+            }
+            fileKey = currentKey;
+            offset = readLines(channel, offset, skipped, consumer);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    // returns the position after the last complete line
+    private static long readLines(FileChannel channel, long offset, NavigableMap<Long, Long> skipped, Consumer<String> consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long position = offset;
+        long consumed = offset;
+        Map.Entry<Long, Long> skip = skipped.ceilingEntry(offset);
+        int read;
+        while ((read = channel.read(buffer.clear(), position)) > 0) {
+            buffer.flip();
+            long bufferStart = position;
+            while (buffer.hasRemaining()) {
+                if (skip != null && position >= skip.getKey()) {
+                    // a line started before the skipped range is the remainder of an interrupted write
+                    line.reset();
+                    position = Math.min(skip.getValue(), bufferStart + read);
+                    buffer.position((int) (position - bufferStart));
+                    if (position == skip.getValue()) {
+                        consumed = position;
+                        skip = skipped.higherEntry(skip.getKey());
+                    }
+                    continue;
+                }
+                byte b = buffer.get();
+                position++;
+                if (b == '\n') {
+                    consumer.accept(line.toString(StandardCharsets.UTF_8));
+                    line.reset();
+                    consumed = position;
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+        long end = consumed;
+        if (!skipped.isEmpty()) {
+            skipped.values().removeIf(rangeEnd -> rangeEnd <= end);
+        }
+        return consumed;
+    }
+
+    /**
+     * Key that identifies the file behind the path, or null if there is no file. Falls back to the creation
+     * time on file systems without file keys.
+     */
+    public static Object fileKey(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+}
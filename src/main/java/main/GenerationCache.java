@@ -0,0 +1,285 @@
+package main;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+
+/**
+ * Persistent cache of generated prompts and images, so that a passphrase or prompt that was already
+ * processed does not go to the inference server again.
+ * <p>
+ * The inputs of a request include the password of an entry, so the cache must not allow guessing
+ * passwords offline. Keys are HMAC-SHA256 values over all inputs of a request under a secret key of this
+ * installation, which is kept in its own file next to the accounts and not in the cache directory.
+ * Each prompt is stored AES-GCM encrypted under the same secret as {@code <key>.prompt} and each image as
+ * {@code <key>.png}. Once the files exceed the size limit, the least recently used ones are deleted.
+ * Without a readable key file nothing is cached.
+ */
+public class GenerationCache {
+    public static final String DEFAULT_DIRECTORY = "cache/";
+    public static final String DEFAULT_KEY_FILE = "generation-cache.key";
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final String PROMPT_SUFFIX = ".prompt";
+    private static final String IMAGE_SUFFIX = ".png";
+    private static final int SECRET_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final SecureRandom random = new SecureRandom();
+    // derived from the secret of the installation, null if it could not be read
+    private final SecretKeySpec keyMacKey;
+    private final SecretKeySpec promptEncryptionKey;
+
+    public GenerationCache(String directory) {
+        this(directory, DEFAULT_KEY_FILE, DEFAULT_MAX_BYTES);
+    }
+
+    public GenerationCache(String directory, String keyFile, long maxBytes) {
+        this.directory = Path.of(directory);
+        this.maxBytes = maxBytes;
+        byte[] secret = loadSecret(Path.of(keyFile));
+        if (secret == null) {
+            keyMacKey = null;
+            promptEncryptionKey = null;
+        } else {
+            keyMacKey = new SecretKeySpec(hmac(new SecretKeySpec(secret, "HmacSHA256"), "cache-key"), "HmacSHA256");
+            promptEncryptionKey = new SecretKeySpec(hmac(new SecretKeySpec(secret, "HmacSHA256"), "prompt-encryption"), "AES");
+        }
+    }
+
+    public String promptKey(String promptTemplate, String passphrase, String model) {
+        return key("prompt", promptTemplate, passphrase, model);
+    }
+
+    public String imageKey(String prompt, String model, String size, String negativePrompt) {
+        return key("image", prompt, model, size, negativePrompt);
+    }
+
+    /**
+     * Returns the cached prompt or null.
+     */
+    public String getPrompt(String key) {
+        if (key == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + PROMPT_SUFFIX);
+        try {
+            byte[] sealed = Files.readAllBytes(file);
+            if (sealed.length < IV_LENGTH) {
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, promptEncryptionKey, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_LENGTH));
+            cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+            String prompt = new String(cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH), StandardCharsets.UTF_8);
+            touch(file);
+            return prompt;
+        } catch (IOException | GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    public void putPrompt(String key, String prompt) {
+        if (key == null) {
+            return;
+        }
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, promptEncryptionKey, new GCMParameterSpec(TAG_BITS, iv));
+            // the key is authenticated as well, so a prompt cannot be moved to another file name
+            cipher.updateAAD(key.getBytes(StandardCharsets.UTF_8));
+            byte[] ciphertext = cipher.doFinal(prompt.getBytes(StandardCharsets.UTF_8));
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tempFile, ByteBuffer.allocate(iv.length + ciphertext.length).put(iv).put(ciphertext).array());
+            Files.move(tempFile, directory.resolve(key + PROMPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | GeneralSecurityException e) {
+            System.out.println("Could not cache the prompt.");
+        }
+    }
+
+    /**
+     * Returns the cached image file or null.
+     */
+    public Path getImage(String key) {
+        if (key == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + IMAGE_SUFFIX);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    public void putImage(String key, Path image) {
+        if (key == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, key, ".tmp");
+            Files.copy(image, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, directory.resolve(key + IMAGE_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            System.out.println("Could not cache the image.");
+        }
+    }
+
+    public void putImage(String key, byte[] image) {
+        if (key == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tempFile, image);
+            Files.move(tempFile, directory.resolve(key + IMAGE_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        } catch (IOException e) {
+            System.out.println("Could not cache the image.");
+        }
+    }
+
+    /**
+     * Deletes all cached prompts and images.
+     */
+    public void clear() {
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.isDirectory() && !file.delete()) {
+                System.out.println("Error when deleting the file " + file + ".");
+            }
+        }
+    }
+
+    // deletes the least recently used files until the cache fits into maxBytes again
+    private synchronized void evict() {
+        File[] files = directory.toFile().listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only affects the eviction order
+        }
+    }
+
+    // null without a secret, so nothing is cached
+    private String key(String... parts) {
+        return keyMacKey == null ? null : hmacKey(keyMacKey, parts);
+    }
+
+    /**
+     * Hex encoded HMAC-SHA256 over the parts under the given key, the way the cache keys are computed.
+     */
+    static String hmacKey(SecretKeySpec key, String... parts) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            for (String part : parts) {
+                byte[] bytes = String.valueOf(part).getBytes(StandardCharsets.UTF_8);
+                // length prefixed, so that different splits of the same text give different keys
+                mac.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+                mac.update(bytes);
+            }
+            return HexFormat.of().formatHex(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static byte[] hmac(SecretKeySpec key, String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // reads the secret of the installation, or creates it on first use
+    private byte[] loadSecret(Path keyFile) {
+        try {
+            if (!Files.exists(keyFile)) {
+                byte[] secret = new byte[SECRET_LENGTH];
+                random.nextBytes(secret);
+                try {
+                    Files.write(keyFile, secret, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    restrictToOwner(keyFile);
+                    // entries of earlier versions were keyed by plain hashes and kept readable prompts
+                    clear();
+                    return secret;
+                } catch (FileAlreadyExistsException e) {
+                    // created by another instance in the meantime
+                }
+            }
+            byte[] secret = Files.readAllBytes(keyFile);
+            if (secret.length != SECRET_LENGTH) {
+                System.out.println("Invalid generation cache key " + keyFile + ", nothing is cached.");
+                return null;
+            }
+            return secret;
+        } catch (IOException e) {
+            System.out.println("Could not read the generation cache key " + keyFile + ", nothing is cached.");
+            return null;
+        }
+    }
+
+    private static void restrictToOwner(Path file) {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // not a POSIX file system
+        }
+    }
+}
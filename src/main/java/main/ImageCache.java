@@ -0,0 +1,119 @@
+package main;
+
+import javafx.scene.image.Image;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Decoded images keyed by their path, evicted in least recently used order once the estimated
+ * size of all images (width * height * 4 bytes) exceeds the memory budget.
+ */
+public class ImageCache {
+    private final LinkedHashMap<String, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> sizes = new HashMap<>();
+    private long maxBytes;
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Returns the cached image for the path or loads it with the loader.
+     * <p>
+     * The size of an image that is still loading in the background is estimated from the size
+     * it was requested with.
+     */
+    public synchronized Image get(String imagePath, Function<String, Image> loader) {
+        Image image = getIfPresent(imagePath);
+        if (image == null) {
+            image = loader.apply(imagePath);
+            put(imagePath, image);
+        }
+        return image;
+    }
+
+    /**
+     * Returns the cached image for the path, or null if it has to be loaded, e.g. in the background
+     * and then added with {@link #put(String, Image)}.
+     */
+    public synchronized Image getIfPresent(String imagePath) {
+        Image image = images.get(imagePath);
+        if (image != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return image;
+    }
+
+    public synchronized void put(String imagePath, Image image) {
+        invalidate(imagePath);
+        long size = estimateBytes(image);
+        images.put(imagePath, image);
+        sizes.put(imagePath, size);
+        currentBytes += size;
+        evict();
+    }
+
+    public synchronized void invalidate(String imagePath) {
+        if (images.remove(imagePath) != null) {
+            currentBytes -= sizes.remove(imagePath);
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        sizes.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Image>> iterator = images.entrySet().iterator();
+        // always keep the most recently used image, even if it alone exceeds the budget
+        while (currentBytes > maxBytes && images.size() > 1 && iterator.hasNext()) {
+            String evictedPath = iterator.next().getKey();
+            iterator.remove();
+            currentBytes -= sizes.remove(evictedPath);
+            evictions++;
+        }
+    }
+
+    private static long estimateBytes(Image image) {
+        double width = image.getWidth() > 0 ? image.getWidth() : image.getRequestedWidth();
+        double height = image.getHeight() > 0 ? image.getHeight() : image.getRequestedHeight();
+        return (long) width * (long) height * 4;
+    }
+}
@@ -2,40 +2,261 @@ package main;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import okhttp3.*;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Serial;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.crypto.spec.SecretKeySpec;
 import javax.imageio.ImageIO;
 
 public class ImageGenerator {
-    private String llmEndpoint;
-    private String imageEndpoint;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    // overloaded or restarting servers, worth another attempt
+    private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(429, 502, 503, 504);
+    private static final int MIN_SENTENCE_LENGTH = 20;
+    private static final DateTimeFormatter FILENAME_TIMESTAMP = DateTimeFormatter.ofPattern("_yyyyMMdd_HHmmss");
+    private static final Metrics.Timer GENERATION_TIMER = Metrics.timer("image.generate");
+    private static final Metrics.Timer LLM_TIMER = Metrics.timer("llm.call");
+    private static final Metrics.Timer IMAGE_TIMER = Metrics.timer("image.call");
+    private static final Metrics.Timer DOWNLOAD_TIMER = Metrics.timer("image.download");
+    private static final Metrics.Timer SAVE_TIMER = Metrics.timer("image.save");
+    private static final Metrics.Counter PROMPT_CACHE_HITS = Metrics.counter("prompt.cacheHits");
+    private static final Metrics.Counter IMAGE_CACHE_HITS = Metrics.counter("image.cacheHits");
+    private static final Metrics.Counter PASSPHRASE_FALLBACKS = Metrics.counter("prompt.passphraseFallbacks");
+    private static final Metrics.Counter FALLBACK_IMAGES = Metrics.counter("image.fallbackImages");
+    private static final Metrics.Counter FAILED_GENERATIONS = Metrics.counter("image.failedGenerations");
+
+    // tried in order, the next one is used when a call fails or the circuit of an endpoint is open
+    private volatile List<String> llmEndpoints;
+    private volatile List<String> imageEndpoints;
+    private final Map<String, CircuitBreaker> llmCircuitBreakers = new ConcurrentHashMap<>();
+    private final Map<String, CircuitBreaker> imageCircuitBreakers = new ConcurrentHashMap<>();
+    private volatile CircuitBreakerSettings llmCircuitSettings = new CircuitBreakerSettings(3, Duration.ofSeconds(20), Duration.ofSeconds(30));
+    private volatile CircuitBreakerSettings imageCircuitSettings = new CircuitBreakerSettings(3, Duration.ofSeconds(60), Duration.ofSeconds(30));
+    private int maxAttemptsPerEndpoint = 2;
+    private Duration retryBackoff = Duration.ofMillis(500);
     private String fallbackImagePath;
     private String llmPromptTemplate;
     private String negativeImagePrompt;
     private String defaultImagePath;
+    private String llmModel;
+    private String imageModel;
+    private String imageSize;
+    private String imageResponseFormat;
+    private boolean llmStreaming = true;
+    // 0 leaves the limit to the server
+    private int llmMaxTokens = 60;
+    private boolean stopPromptAtSentenceEnd = true;
+    private int maxPromptLength = 300;
+    // null disables caching of prompts and images
+    private GenerationCache generationCache;
+    // null stores every image as a file under defaultImagePath
+    private ImageStore imageStore = null;
+
+    // One client for all requests so connections to the inference server are kept alive and reused.
+    // The per-endpoint clients are derived from it and share its connection pool and dispatcher.
+    private final OkHttpClient httpClient;
+    private final boolean ownsHttpClient;
+    private OkHttpClient llmClient;
+    private OkHttpClient imageClient;
+
+    // how many generations the inference server can handle at a time
+    private int maxConcurrentGenerations = 2;
+
+    // Prompts requested speculatively before the user adds the entry, keyed by an HMAC of the password under
+    // a random secret of this generator, so the map holds no passwords. Only kept in memory and only for a
+    // short time.
+    private final Map<String, SpeculativePrompt> speculativePrompts = new ConcurrentHashMap<>();
+    private final SecretKeySpec speculativeKeySecret = newSpeculativeKeySecret();
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("prompt-prefetch").daemon(true).factory());
+    private Duration speculativePromptTtl = Duration.ofMinutes(1);
+    private final AtomicInteger prefetchHits = new AtomicInteger();
+    private final AtomicInteger prefetchMisses = new AtomicInteger();
+    private final AtomicInteger prefetchCancellations = new AtomicInteger();
+    // whether prompts are prefetched at all, only then a generation without one counts as a miss
+    private volatile boolean prefetching = false;
 
     public ImageGenerator() {
-        this.llmEndpoint = "http://localhost:8080/v1/chat/completions";
-        this.imageEndpoint = "http://localhost:8080/v1/images/generations";
+        this(createHttpClient(), true);
+    }
+
+    /**
+     * Uses the given client for all requests, e.g. to share one connection pool across the application.
+     * The client is not shut down by {@link #shutdown()}.
+     */
+    public ImageGenerator(OkHttpClient httpClient) {
+        this(httpClient, false);
+    }
+
+    private ImageGenerator(OkHttpClient httpClient, boolean ownsHttpClient) {
+        this.httpClient = httpClient;
+        this.ownsHttpClient = ownsHttpClient;
+        this.llmClient = httpClient.newBuilder()
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build();
+        this.imageClient = httpClient.newBuilder()
+                .readTimeout(90, TimeUnit.SECONDS)    // Read timeout higher as image generation can take some time
+                .build();
+        this.llmEndpoints = List.of("http://localhost:8080/v1/chat/completions");
+        this.imageEndpoints = List.of("http://localhost:8080/v1/images/generations");
         this.fallbackImagePath = "default.jpeg";
         this.llmPromptTemplate = "Generate a short and concise image description to visualize the passphrase: \"{passphrase}\".";
         this.negativeImagePrompt = "Text";
         this.defaultImagePath = "images/";
+        this.llmModel = "gpt-4";
+        this.imageModel = "stablediffusion";
+        this.imageSize = "512x512";
+        this.imageResponseFormat = "url";
+        this.generationCache = new GenerationCache(GenerationCache.DEFAULT_DIRECTORY);
+    }
+
+    private record CircuitBreakerSettings(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        CircuitBreaker create() {
+            return new CircuitBreaker(failureThreshold, slowCallThreshold, openDuration);
+        }
+    }
 
+    private record SpeculativePrompt(CompletableFuture<String> prompt, long createdAt) {
+    }
+
+    @FunctionalInterface
+    private interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    // thrown by a response handler that could not use a successful response for reasons of its own, e.g.
+    // because the image could not be saved, which says nothing about the health of the endpoint
+    private static class LocalFailureException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        LocalFailureException(String message) {
+            super(message);
+        }
+
+        LocalFailureException(String message, Throwable cause) {
+            super(message, cause);
+        }
     }
 
     public void setLlmEndpoint(String llmEndpoint) {
-        this.llmEndpoint = llmEndpoint;
+        setLlmEndpoints(List.of(llmEndpoint));
+    }
+
+    /**
+     * Sets the LLM endpoints in the order in which they are tried.
+     */
+    public void setLlmEndpoints(List<String> llmEndpoints) {
+        if (llmEndpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one LLM endpoint is needed");
+        }
+        this.llmEndpoints = List.copyOf(llmEndpoints);
     }
 
     public void setImageEndpoint(String imageEndpoint) {
-        this.imageEndpoint = imageEndpoint;
+        setImageEndpoints(List.of(imageEndpoint));
+    }
+
+    /**
+     * Sets the image endpoints in the order in which they are tried.
+     */
+    public void setImageEndpoints(List<String> imageEndpoints) {
+        if (imageEndpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one image endpoint is needed");
+        }
+        this.imageEndpoints = List.copyOf(imageEndpoints);
+    }
+
+    /**
+     * Sets when the circuit of an LLM endpoint opens: after failureThreshold failed calls in a row, where
+     * calls slower than slowCallThreshold count as failed. While open the endpoint is skipped for
+     * openDuration, then a single probe call decides whether it is used again.
+     */
+    public void setLlmCircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        this.llmCircuitSettings = new CircuitBreakerSettings(failureThreshold, slowCallThreshold, openDuration);
+        llmCircuitBreakers.clear();
+    }
+
+    /**
+     * Same as {@link #setLlmCircuitBreaker} for the image endpoints.
+     */
+    public void setImageCircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        this.imageCircuitSettings = new CircuitBreakerSettings(failureThreshold, slowCallThreshold, openDuration);
+        imageCircuitBreakers.clear();
+    }
+
+    /**
+     * Sets how often a call to one endpoint is attempted if it fails with a connection error or a
+     * 429, 502, 503 or 504 response, with a jittered backoff that starts at initialBackoff. Timeouts are
+     * not retried on the same endpoint.
+     */
+    public void setRetryPolicy(int maxAttemptsPerEndpoint, Duration initialBackoff) {
+        if (maxAttemptsPerEndpoint < 1) {
+            throw new IllegalArgumentException("maxAttemptsPerEndpoint must be at least 1");
+        }
+        this.maxAttemptsPerEndpoint = maxAttemptsPerEndpoint;
+        this.retryBackoff = initialBackoff;
+    }
+
+    public CircuitBreaker.State getLlmCircuitState(String llmEndpoint) {
+        CircuitBreaker circuitBreaker = llmCircuitBreakers.get(llmEndpoint);
+        return circuitBreaker == null ? CircuitBreaker.State.CLOSED : circuitBreaker.getState();
+    }
+
+    public CircuitBreaker.State getImageCircuitState(String imageEndpoint) {
+        CircuitBreaker circuitBreaker = imageCircuitBreakers.get(imageEndpoint);
+        return circuitBreaker == null ? CircuitBreaker.State.CLOSED : circuitBreaker.getState();
+    }
+
+    public void setLlmTimeouts(Duration connectTimeout, Duration readTimeout) {
+        this.llmClient = httpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .readTimeout(readTimeout)
+                .build();
+    }
+
+    public void setImageTimeouts(Duration connectTimeout, Duration readTimeout) {
+        this.imageClient = httpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .readTimeout(readTimeout)
+                .build();
     }
 
     public void setFallbackImagePath(String fallbackImagePath) {
@@ -54,47 +275,449 @@ public class ImageGenerator {
         this.defaultImagePath = defaultImagePath;
     }
 
+    public void setLlmModel(String llmModel) {
+        this.llmModel = llmModel;
+    }
+
+    public void setImageModel(String imageModel) {
+        this.imageModel = imageModel;
+    }
+
+    public void setImageSize(String imageSize) {
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * "url" to download the generated image from the returned URL, or "b64_json" to receive it base64
+     * encoded in the response.
+     */
+    public void setImageResponseFormat(String imageResponseFormat) {
+        this.imageResponseFormat = imageResponseFormat;
+    }
+
+    /**
+     * Requests the prompt as a stream of server-sent events, so reading can stop as soon as the prompt is
+     * complete. Servers that do not stream are handled as well.
+     */
+    public void setLlmStreaming(boolean llmStreaming) {
+        this.llmStreaming = llmStreaming;
+    }
+
+    /**
+     * Sets the max_tokens of the prompt request, 0 to not send it.
+     */
+    public void setLlmMaxTokens(int llmMaxTokens) {
+        this.llmMaxTokens = llmMaxTokens;
+    }
+
+    /**
+     * Sets where the generated prompt is cut off: after its first sentence and/or after maxPromptLength
+     * characters (0 for no limit). A streamed generation is cancelled once the cutoff is reached.
+     */
+    public void setPromptCutoff(boolean stopAtSentenceEnd, int maxPromptLength) {
+        this.stopPromptAtSentenceEnd = stopAtSentenceEnd;
+        this.maxPromptLength = maxPromptLength;
+    }
+
+    public void setGenerationCache(GenerationCache generationCache) {
+        this.generationCache = generationCache;
+    }
+
+    /**
+     * Stores generated images in the image store instead of one file per image. generateImage then
+     * returns the path of the image in the store instead of {@link #getImagePath(String)}.
+     */
+    public void setImageStore(ImageStore imageStore) {
+        this.imageStore = imageStore;
+    }
+
+    public ImageStore getImageStore() {
+        return imageStore;
+    }
+
+    /**
+     * How many images the inference server can generate at a time, used for the number of image job workers
+     * and the default concurrency of batches.
+     */
+    public void setMaxConcurrentGenerations(int maxConcurrentGenerations) {
+        if (maxConcurrentGenerations < 1) {
+            throw new IllegalArgumentException("maxConcurrentGenerations must be at least 1");
+        }
+        this.maxConcurrentGenerations = maxConcurrentGenerations;
+    }
+
+    public int getMaxConcurrentGenerations() {
+        return maxConcurrentGenerations;
+    }
+
+    /**
+     * Path under which generateImage stores the image for the given file name if no image store is set.
+     */
+    public String getImagePath(String outputFilename) {
+        return new File(defaultImagePath, outputFilename).getPath();
+    }
+
+    /**
+     * Removes an image returned by generateImage that is not used after all, e.g. because its entry was
+     * deleted during the generation.
+     */
+    public void discardImage(String imagePath) {
+        if (ImageStore.isStored(imagePath)) {
+            if (imageStore != null) {
+                imageStore.release(imagePath);
+            }
+            return;
+        }
+        try {
+            Files.deleteIfExists(Path.of(imagePath));
+        } catch (IOException e) {
+            System.out.println("Error deleting the image " + imagePath + ".");
+        }
+    }
+
+    /**
+     * File name for a new image of an entry. It is unique, so the entry can be found by the image path
+     * until the image is generated.
+     */
+    public static String newImageFilename(String username, String website) {
+        return username + "_" + website + LocalDateTime.now().format(FILENAME_TIMESTAMP)
+                + String.format("_%08x", ThreadLocalRandom.current().nextInt()) + ".png";
+    }
+
+    /**
+     * Starts generating the prompt for the passphrase in the background, e.g. while the user is still
+     * entering it, so that a following generateImage can go straight to the image request. A speculative
+     * request that is still running for another passphrase is cancelled, since the user has moved on.
+     */
+    public void prefetchPrompt(String passphrase) {
+        prefetching = true;
+        String promptKey = speculativeKey(passphrase);
+        removeExpiredSpeculativePrompts();
+        if (speculativePrompts.containsKey(promptKey) || (generationCache != null
+                && generationCache.getPrompt(generationCache.promptKey(llmPromptTemplate, passphrase, llmModel)) != null)) {
+            return;
+        }
+        cancelSpeculativePrompts();
+        CompletableFuture<String> prompt = new CompletableFuture<>();
+        speculativePrompts.put(promptKey, new SpeculativePrompt(prompt, System.nanoTime()));
+        prefetchExecutor.execute(() -> {
+            if (prompt.isDone()) {
+                return;
+            }
+            try {
+                prompt.complete(callLLMForPrompt(passphrase, prompt));
+            } catch (RuntimeException e) {
+                prompt.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Cancels the speculative prompt requests that are still running, e.g. when the password field was
+     * cleared. Finished prompts are kept until they expire.
+     */
+    public void cancelSpeculativePrompts() {
+        speculativePrompts.values().removeIf(speculative -> {
+            if (speculative.prompt().cancel(false)) {
+                prefetchCancellations.incrementAndGet();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Sets how long a speculatively generated prompt is kept.
+     */
+    public void setSpeculativePromptTtl(Duration speculativePromptTtl) {
+        this.speculativePromptTtl = speculativePromptTtl;
+    }
+
+    /**
+     * Number of generations that used a speculatively generated prompt.
+     */
+    public int getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /**
+     * Number of generations that had to request their prompt although prompts were prefetched.
+     */
+    public int getPrefetchMisses() {
+        return prefetchMisses.get();
+    }
+
+    /**
+     * Number of speculative requests that were cancelled before they finished.
+     */
+    public int getPrefetchCancellations() {
+        return prefetchCancellations.get();
+    }
+
+    // computed like the key of the prompt cache
+    private String speculativeKey(String passphrase) {
+        return GenerationCache.hmacKey(speculativeKeySecret, "prompt", llmPromptTemplate, passphrase, llmModel);
+    }
+
+    private static SecretKeySpec newSpeculativeKeySecret() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    // the speculative prompt for the key, waiting for it if it is still being generated, or null
+    private String takeSpeculativePrompt(String promptKey) {
+        SpeculativePrompt speculative = speculativePrompts.remove(promptKey);
+        if (speculative == null || isExpired(speculative)) {
+            if (prefetching) {
+                prefetchMisses.incrementAndGet();
+            }
+            return null;
+        }
+        try {
+            String prompt = speculative.prompt().join();
+            if (prompt != null) {
+                prefetchHits.incrementAndGet();
+            } else {
+                prefetchMisses.incrementAndGet();
+            }
+            return prompt;
+        } catch (RuntimeException e) {
+            prefetchMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    private boolean isExpired(SpeculativePrompt speculative) {
+        return System.nanoTime() - speculative.createdAt() > speculativePromptTtl.toNanos();
+    }
+
+    private void removeExpiredSpeculativePrompts() {
+        speculativePrompts.values().removeIf(speculative -> speculative.prompt().isDone() && isExpired(speculative));
+    }
+
+    public void shutdown() {
+        cancelSpeculativePrompts();
+        speculativePrompts.clear();
+        prefetchExecutor.shutdown();
+        if (prefetchHits.get() + prefetchMisses.get() > 0) {
+            System.out.println("Speculative prompts: " + prefetchHits.get() + " hits, " + prefetchMisses.get()
+                    + " misses, " + prefetchCancellations.get() + " cancelled requests.");
+        }
+        if (ownsHttpClient) {
+            httpClient.dispatcher().executorService().shutdown();
+            httpClient.connectionPool().evictAll();
+        }
+    }
+
+    /**
+     * Generates the images of all jobs with at most maxConcurrency requests at a time, which should match
+     * what the inference server can handle. A failed job is retried up to maxAttempts times with
+     * exponential backoff. Failed jobs do not get the fallback image.
+     * <p>
+     * The future completes with the image path of every job, or null for jobs that failed. Cancelling
+     * it skips all jobs that have not started yet.
+     */
+    public CompletableFuture<Map<ImageJob, String>> generateImages(List<ImageJob> jobs, int maxConcurrency, int maxAttempts,
+                                                                   Duration initialBackoff, BatchProgressListener listener) {
+        CompletableFuture<Map<ImageJob, String>> result = new CompletableFuture<>();
+        if (jobs.isEmpty()) {
+            result.complete(new LinkedHashMap<>());
+            return result;
+        }
+        ExecutorService batchExecutor = Executors.newFixedThreadPool(maxConcurrency,
+                Thread.ofPlatform().name("image-batch-", 0).daemon(true).factory());
+        AtomicReferenceArray<String> imagePaths = new AtomicReferenceArray<>(jobs.size());
+        AtomicInteger completedJobs = new AtomicInteger();
+
+        for (int i = 0; i < jobs.size(); i++) {
+            int index = i;
+            ImageJob job = jobs.get(i);
+            batchExecutor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                String imagePath = generateWithRetries(job, maxAttempts, initialBackoff, result);
+                imagePaths.set(index, imagePath);
+                int completed = completedJobs.incrementAndGet();
+                if (listener != null) {
+                    listener.jobFinished(job, imagePath, completed, jobs.size());
+                }
+                if (completed == jobs.size()) {
+                    Map<ImageJob, String> paths = new LinkedHashMap<>();
+                    for (int j = 0; j < jobs.size(); j++) {
+                        paths.put(jobs.get(j), imagePaths.get(j));
+                    }
+                    result.complete(paths);
+                }
+            });
+        }
+        batchExecutor.shutdown();
+        return result;
+    }
+
+    private String generateWithRetries(ImageJob job, int maxAttempts, Duration initialBackoff, CompletableFuture<?> batch) {
+        long backoffMillis = initialBackoff.toMillis();
+        for (int attempt = 1; attempt <= maxAttempts && !batch.isDone(); attempt++) {
+            String imagePath = null;
+            try {
+                imagePath = generateImage(job.passphrase(), job.outputFilename(), false);
+            } catch (RuntimeException e) {
+                System.out.println("Error generating image:");
+                e.printStackTrace();
+            }
+            if (imagePath != null) {
+                return imagePath;
+            }
+            if (attempt < maxAttempts) {
+                System.out.println("Image generation failed, retrying " + job.outputFilename() + " (attempt " + (attempt + 1) + ")");
+                try {
+                    // jitter keeps retries of parallel jobs from hitting the server at the same moment
+                    Thread.sleep(backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                backoffMillis *= 2;
+            }
+        }
+        return null;
+    }
+
     public String generateImage(String passphrase, String outputFilename) {
-        String generatedPrompt = callLLMForPrompt(passphrase);
+        return generateImage(passphrase, outputFilename, true);
+    }
+
+    /**
+     * Generates the image on the calling thread. Without the fallback image a failed image request
+     * returns null, so the caller can retry.
+     */
+    public String generateImage(String passphrase, String outputFilename, boolean useFallbackImage) {
+        long start = Metrics.startTimer();
+        try {
+            return generate(passphrase, outputFilename, useFallbackImage);
+        } finally {
+            GENERATION_TIMER.stop(start);
+        }
+    }
+
+    private String generate(String passphrase, String outputFilename, boolean useFallbackImage) {
+        String generatedPrompt = null;
+        String promptKey = null;
+        if (generationCache != null) {
+            promptKey = generationCache.promptKey(llmPromptTemplate, passphrase, llmModel);
+            generatedPrompt = generationCache.getPrompt(promptKey);
+        }
+        if (generatedPrompt == null) {
+            generatedPrompt = takeSpeculativePrompt(speculativeKey(passphrase));
+            if (generatedPrompt == null) {
+                generatedPrompt = callLLMForPrompt(passphrase, null);
+            } else {
+                System.out.println("Using speculatively generated prompt");
+            }
+            if (generatedPrompt != null && generationCache != null) {
+                generationCache.putPrompt(promptKey, generatedPrompt);
+            }
+        } else {
+            PROMPT_CACHE_HITS.increment();
+            System.out.println("Using cached prompt");
+        }
         System.out.println("Generated prompt: " + generatedPrompt);
 
         if (generatedPrompt == null) {
+            PASSPHRASE_FALLBACKS.increment();
             System.out.println("Using fallback passphrase due to LLM failure");
             generatedPrompt = passphrase;
         }
 
-        String imageUrl = callLocalAIAndReturnImage(generatedPrompt);
+        String imageKey = generationCache != null
+                ? generationCache.imageKey(generatedPrompt, imageModel, imageSize, negativeImagePrompt) : null;
+        Path cachedImage = generationCache != null ? generationCache.getImage(imageKey) : null;
+        String imagePath = cachedImage != null ? copyCachedImage(cachedImage, outputFilename) : null;
+        if (imagePath != null) {
+            return imagePath;
+        }
 
-        if (imageUrl == null) {
-            System.out.println("Image generation failed. Using fallback image.");
-            File fallbackFile = new File(fallbackImagePath);
-            if (fallbackFile.exists()) {
-                imageUrl = fallbackFile.toURI().toString();
-            } else {
-                System.out.println("Fallback image file not found. Cannot load fallback image.");
-                return null;
+        imagePath = callLocalAIAndSaveImage(generatedPrompt, outputFilename);
+
+        if (imagePath != null) {
+            if (generationCache != null) {
+                cacheImage(imageKey, imagePath);
             }
+            return imagePath;
+        }
+
+        if (!useFallbackImage) {
+            FAILED_GENERATIONS.increment();
+            System.out.println("Image generation failed.");
+            return null;
         }
 
-        if (imageUrl != null) {
-            saveImage(imageUrl, outputFilename);
-            return new File(defaultImagePath, outputFilename).getPath();
+        // the fallback image is never cached, so the next attempt asks the server again
+        FALLBACK_IMAGES.increment();
+        System.out.println("Image generation failed. Using fallback image.");
+        File fallbackFile = new File(fallbackImagePath);
+        if (fallbackFile.exists()) {
+            return saveImage(fallbackFile.toURI().toString(), outputFilename);
         } else {
-            System.out.println("Failed to generate or fetch fallback image.");
+            System.out.println("Fallback image file not found. Cannot load fallback image.");
             return null;
         }
     }
 
-    private OkHttpClient createHttpClient() {
+    private String copyCachedImage(Path cachedImage, String destinationFile) {
+        try {
+            String imagePath;
+            if (imageStore != null) {
+                imagePath = imageStore.put(Files.readAllBytes(cachedImage));
+            } else {
+                Files.createDirectories(Path.of(defaultImagePath));
+                Files.copy(cachedImage, Path.of(getImagePath(destinationFile)), StandardCopyOption.REPLACE_EXISTING);
+                imagePath = getImagePath(destinationFile);
+            }
+            IMAGE_CACHE_HITS.increment();
+            System.out.println("Using cached image for: " + destinationFile);
+            return imagePath;
+        } catch (IOException e) {
+            System.out.println("Failed to copy cached image:");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void cacheImage(String imageKey, String imagePath) {
+        if (!ImageStore.isStored(imagePath)) {
+            generationCache.putImage(imageKey, Path.of(imagePath));
+            return;
+        }
+        try {
+            byte[] image = imageStore.read(imagePath);
+            if (image != null) {
+                generationCache.putImage(imageKey, image);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not cache the image.");
+        }
+    }
+
+    private static OkHttpClient createHttpClient() {
+        // all requests go to the same local inference server, so allow as many parallel requests
+        // per host as there are generation workers and keep idle connections around between adds
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(16);
+        dispatcher.setMaxRequestsPerHost(8);
         return new OkHttpClient.Builder()
-                .connectTimeout(10, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(90, java.util.concurrent.TimeUnit.SECONDS)    // Read timeout higher as image generation can take some time
-                .writeTimeout(10, java.util.concurrent.TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(8, 5, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))    // HTTP/2 is negotiated via ALPN on https endpoints
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(90, TimeUnit.SECONDS)
+                .writeTimeout(10, TimeUnit.SECONDS)
                 .build();
     }
 
-    private String callLLMForPrompt(String passphrase) {
-        OkHttpClient client = createHttpClient();
+    // owner: cancelling it aborts the request, null if the request cannot be cancelled
+    private String callLLMForPrompt(String passphrase, CompletableFuture<?> owner) {
         Gson gson = new Gson();
 
         JsonObject message = new JsonObject();
@@ -106,88 +729,443 @@ public class ImageGenerator {
         messages.add(message);
 
         JsonObject requestBodyJson = new JsonObject();
-        requestBodyJson.addProperty("model", "gpt-4");
+        requestBodyJson.addProperty("model", llmModel);
         requestBodyJson.add("messages", messages);
+        if (llmMaxTokens > 0) {
+            requestBodyJson.addProperty("max_tokens", llmMaxTokens);
+        }
+        if (llmStreaming) {
+            requestBodyJson.addProperty("stream", true);
+        }
 
-        RequestBody requestBody = RequestBody.create(requestBodyJson.toString(), MediaType.parse("application/json"));
-
-        Request request = new Request.Builder()
-                .url(llmEndpoint)
-                .post(requestBody)
-                .build();
+        long start = Metrics.startTimer();
+        String prompt = callWithFailover("LLM", llmEndpoints, llmCircuitBreakers, llmCircuitSettings, llmClient,
+                requestBodyJson.toString(), response -> {
+                    String contentType = response.header("Content-Type", "");
+                    if (contentType.startsWith("text/event-stream")) {
+                        return cutPrompt(readStreamedPrompt(response.body().charStream(), gson));
+                    }
+                    JsonObject responseJson = gson.fromJson(response.body().string(), JsonObject.class);
+                    return cutPrompt(responseJson.getAsJsonArray("choices")
+                            .get(0).getAsJsonObject()
+                            .get("message").getAsJsonObject()
+                            .get("content").getAsString());
+                }, owner);
+        LLM_TIMER.stop(start);
+        return prompt;
+    }
 
-        try {
-            Response response = client.newCall(request).execute();
-            if (response.isSuccessful() && response.body() != null) {
-                String responseBody = response.body().string();
-                JsonObject responseJson = gson.fromJson(responseBody, JsonObject.class);
-                return responseJson.getAsJsonArray("choices")
-                        .get(0).getAsJsonObject()
-                        .get("message").getAsJsonObject()
-                        .get("content").getAsString();
-            } else {
-                System.out.println("LLM API failed: " + response.code());
-                return null;
+    /**
+     * Collects the content deltas of a streamed chat completion. Stops reading once the prompt reaches the
+     * cutoff; the response is then closed, which cancels the rest of the generation.
+     */
+    private String readStreamedPrompt(Reader body, Gson gson) throws IOException {
+        StringBuilder prompt = new StringBuilder();
+        BufferedReader reader = new BufferedReader(body);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("data:")) {
+                continue;
             }
-        } catch (IOException e) {
-            System.out.println("Error calling LLM:");
-            e.printStackTrace();
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                break;
+            }
+            JsonArray choices = gson.fromJson(data, JsonObject.class).getAsJsonArray("choices");
+            if (choices == null || choices.isEmpty()) {
+                continue;
+            }
+            JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+            JsonElement content = delta == null ? null : delta.get("content");
+            if (content != null && !content.isJsonNull()) {
+                prompt.append(content.getAsString());
+            }
+            if (isPromptComplete(prompt)) {
+                System.out.println("Prompt complete, cancelling the rest of the generation.");
+                break;
+            }
+        }
+        return prompt.toString();
+    }
+
+    private boolean isPromptComplete(CharSequence prompt) {
+        return (maxPromptLength > 0 && prompt.length() >= maxPromptLength)
+                || (stopPromptAtSentenceEnd && sentenceEnd(prompt, false) > 0);
+    }
+
+    // returns null for a blank prompt, so the passphrase is used instead like when the LLM call failed
+    private String cutPrompt(String prompt) {
+        String cut = prompt.strip();
+        if (cut.isEmpty()) {
             return null;
         }
+        int end = stopPromptAtSentenceEnd ? sentenceEnd(cut, true) : -1;
+        if (end > 0) {
+            cut = cut.substring(0, end);
+        }
+        if (maxPromptLength > 0 && cut.length() > maxPromptLength) {
+            int lastSpace = cut.lastIndexOf(' ', maxPromptLength);
+            cut = cut.substring(0, lastSpace > 0 ? lastSpace : maxPromptLength);
+        }
+        return cut;
     }
 
-    private String callLocalAIAndReturnImage(String prompt) {
-        OkHttpClient client = createHttpClient();
+    // index after the first sentence end, ignoring very short sentences such as abbreviations. While the
+    // text is still being streamed, a period at its end may belong to a number, so the next character decides.
+    private static int sentenceEnd(CharSequence text, boolean complete) {
+        for (int i = MIN_SENTENCE_LENGTH; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '.' && c != '!' && c != '?') {
+                continue;
+            }
+            if (i + 1 < text.length() ? Character.isWhitespace(text.charAt(i + 1)) : complete) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // returns the path of the saved image or null
+    private String callLocalAIAndSaveImage(String prompt, String destinationFile) {
         Gson gson = new Gson();
+        boolean base64Response = imageResponseFormat.equals("b64_json");
 
         JsonObject requestBodyJson = new JsonObject();
         requestBodyJson.addProperty("prompt", prompt + "|" + this.negativeImagePrompt);
-        requestBodyJson.addProperty("model", "stablediffusion");
-        requestBodyJson.addProperty("size", "512x512");
+        requestBodyJson.addProperty("model", imageModel);
+        requestBodyJson.addProperty("size", imageSize);
+        if (base64Response) {
+            requestBodyJson.addProperty("response_format", "b64_json");
+        }
 
-        RequestBody requestBody = RequestBody.create(requestBodyJson.toString(), MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-                .url(imageEndpoint)
-                .post(requestBody)
-                .build();
+        long start = Metrics.startTimer();
+        String imagePath = callWithFailover("Image", imageEndpoints, imageCircuitBreakers, imageCircuitSettings, imageClient,
+                requestBodyJson.toString(), response -> {
+                    String savedPath;
+                    if (base64Response) {
+                        savedPath = saveBase64Image(response.body().byteStream(), destinationFile);
+                    } else {
+                        JsonObject responseJson = gson.fromJson(response.body().string(), JsonObject.class);
+                        String imageUrl = responseJson.getAsJsonArray("data")
+                                .get(0).getAsJsonObject()
+                                .get("url").getAsString();
+                        savedPath = saveImage(imageUrl, destinationFile);
+                    }
+                    if (savedPath == null) {
+                        throw new LocalFailureException("The generated image could not be saved.");
+                    }
+                    return savedPath;
+                }, null);
+        IMAGE_TIMER.stop(start);
+        return imagePath;
+    }
+
+    /**
+     * Posts the request to the first endpoint whose circuit is not open and passes a successful response to
+     * the handler. Connection errors and overload responses are retried with backoff, other failures move on
+     * to the next endpoint. Failures of the handler itself are not counted by the circuit breaker. Returns
+     * null if no endpoint succeeded, right away if all circuits are open.
+     */
+    private <T> T callWithFailover(String service, List<String> endpoints, Map<String, CircuitBreaker> circuitBreakers,
+                                   CircuitBreakerSettings circuitSettings, OkHttpClient client, String requestJson,
+                                   ResponseHandler<T> handler, CompletableFuture<?> owner) {
+        for (String endpoint : endpoints) {
+            CircuitBreaker circuitBreaker = circuitBreakers.computeIfAbsent(endpoint, _ -> circuitSettings.create());
+            long backoffMillis = retryBackoff.toMillis();
+            for (int attempt = 1; attempt <= maxAttemptsPerEndpoint; attempt++) {
+                if (owner != null && owner.isDone()) {
+                    return null;
+                }
+                if (!circuitBreaker.tryAcquire()) {
+                    System.out.println(service + " endpoint " + endpoint + " is unavailable, skipping it.");
+                    break;
+                }
+                Request request = new Request.Builder()
+                        .url(endpoint)
+                        .post(RequestBody.create(requestJson, MediaType.parse("application/json")))
+                        .build();
+                Call call = client.newCall(request);
+                if (owner != null) {
+                    // aborts the request when the owner is cancelled, so the server stops working on it
+                    owner.whenComplete((_, _) -> call.cancel());
+                }
+                long start = System.nanoTime();
+                boolean retryable;
+                // the response has to be closed, otherwise its connection cannot be reused
+                try (Response response = call.execute()) {
+                    // only the service and the status code, never anything of the request
+                    Metrics.count("http." + service + ".status." + response.code());
+                    if (response.isSuccessful() && response.body() != null) {
+                        T result = handler.handle(response);
+                        circuitBreaker.recordSuccess(System.nanoTime() - start);
+                        return result;
+                    }
+                    System.out.println(service + " API failed: " + response.code());
+                    retryable = RETRYABLE_STATUS_CODES.contains(response.code());
+                } catch (LocalFailureException e) {
+                    circuitBreaker.release();
+                    System.out.println(e.getMessage());
+                    break;
+                } catch (IOException e) {
+                    if (call.isCanceled()) {
+                        // says nothing about the health of the endpoint
+                        circuitBreaker.release();
+                        return null;
+                    }
+                    Metrics.count("http." + service + (e instanceof ConnectException ? ".connectErrors" : ".errors"));
+                    if (e instanceof ConnectException) {
+                        System.out.println("Could not connect to " + endpoint + ": " + e.getMessage());
+                        retryable = true;
+                    } else {
+                        System.out.println("Error calling " + service + ":");
+                        e.printStackTrace();
+                        // e.g. a read timeout, retrying would make the caller wait that long again
+                        retryable = false;
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a response the handler did not expect, neither a transport nor an HTTP error
+                    circuitBreaker.release();
+                    throw e;
+                }
+                // only transport errors and error responses count against the endpoint
+                circuitBreaker.recordFailure();
+                if (!retryable || attempt == maxAttemptsPerEndpoint) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoffMillis + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                backoffMillis *= 2;
+            }
+        }
+        return null;
+    }
 
+    /**
+     * Streams the image at imageUrl to the destination file. The image is only decoded and re-encoded
+     * if it is not a PNG already. Returns the path of the saved image or null.
+     */
+    private String saveImage(String imageUrl, String destinationFile) {
         try {
-            Response response = client.newCall(request).execute();
-            if (response.isSuccessful() && response.body() != null) {
-                String responseBody = response.body().string();
-                JsonObject responseJson = gson.fromJson(responseBody, JsonObject.class);
-                return responseJson.getAsJsonArray("data")
-                        .get(0).getAsJsonObject()
-                        .get("url").getAsString();
-            } else {
-                System.out.println("Image API failed: " + response.body().string());
-                return null;
+            Path outputFile = prepareOutputFile(destinationFile);
+            Path partFile = partFileFor(outputFile);
+            URI uri = new URI(imageUrl);
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme();
+            switch (scheme) {
+                case "http", "https" -> downloadImage(imageUrl, partFile);
+                case "file" -> {
+                    try (FileChannel source = FileChannel.open(Path.of(uri));
+                         FileChannel target = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long size = source.size();
+                        long position = 0;
+                        while (position < size) {
+                            position += target.transferFrom(source, position, size - position);
+                        }
+                    }
+                }
+                default -> {
+                    try (InputStream in = uri.toURL().openStream()) {
+                        Files.copy(in, partFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Error generating image:");
+            return storeAsPng(partFile, outputFile);
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            System.out.println("Failed to save image:");
             e.printStackTrace();
             return null;
         }
     }
 
-    private void saveImage(String imageUrl, String destinationFile) {
+    private void downloadImage(String imageUrl, Path partFile) throws IOException {
+        long start = Metrics.startTimer();
+        Request request = new Request.Builder().url(imageUrl).get().build();
+        try (Response response = imageClient.newCall(request).execute()) {
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException("Image download failed: " + response.code());
+            }
+            Files.copy(response.body().byteStream(), partFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        DOWNLOAD_TIMER.stop(start);
+    }
+
+    /**
+     * Decodes the b64_json field of an image response while it is being received, without holding
+     * the response or the image in memory.
+     */
+    private String saveBase64Image(InputStream responseBody, String destinationFile) throws IOException {
+        InputStream base64 = JsonStringFieldInputStream.open(new BufferedInputStream(responseBody), "b64_json");
+        if (base64 == null) {
+            System.out.println("Image API response contains no b64_json field.");
+            return null;
+        }
+        ReadFailureTrackingInputStream body = new ReadFailureTrackingInputStream(base64);
+        Path outputFile = prepareOutputFile(destinationFile);
+        Path partFile = partFileFor(outputFile);
+        try {
+            // the MIME decoder skips line breaks some servers put into long base64 strings
+            try (InputStream decoded = Base64.getMimeDecoder().wrap(body)) {
+                Files.copy(decoded, partFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return storeAsPng(partFile, outputFile);
+        } catch (IOException e) {
+            if (body.hasFailed()) {
+                // the connection broke while the image was read
+                throw e;
+            }
+            throw new LocalFailureException("The generated image could not be saved.", e);
+        }
+    }
+
+    private Path prepareOutputFile(String destinationFile) {
+        // create image save path if it does not exist
+        File defaultImageDir = new File(defaultImagePath);
+        if (!defaultImageDir.exists()) {
+            boolean created = defaultImageDir.mkdirs();
+            if (!created) {
+                System.out.println("Directory could not be created");
+            }
+        }
+        return Path.of(getImagePath(destinationFile));
+    }
+
+    // images are written next to their destination first, so a table cell never reads a half written file
+    private static Path partFileFor(Path outputFile) {
+        return outputFile.resolveSibling(outputFile.getFileName() + ".part");
+    }
+
+    // moves the image to the output file or into the image store and returns its path
+    private String storeAsPng(Path partFile, Path outputFile) throws IOException {
+        long start = Metrics.startTimer();
         try {
-            // create image save path if it does not exist
-            File defaultImageDir = new File(defaultImagePath);
-            if (!defaultImageDir.exists()) {
-                boolean created = defaultImageDir.mkdirs();
-                if (!created) {
-                    System.out.println("Directory could not be created");
+            return storePng(partFile, outputFile);
+        } finally {
+            SAVE_TIMER.stop(start);
+        }
+    }
+
+    private String storePng(Path partFile, Path outputFile) throws IOException {
+        if (!isPng(partFile)) {
+            BufferedImage image = ImageIO.read(partFile.toFile());
+            if (image == null) {
+                Files.deleteIfExists(partFile);
+                throw new IOException("Unsupported image format");
+            }
+            ImageIO.write(image, "png", partFile.toFile());
+        }
+        if (imageStore != null) {
+            try {
+                String imagePath = imageStore.put(Files.readAllBytes(partFile));
+                System.out.println("Image stored as: " + imagePath);
+                return imagePath;
+            } finally {
+                Files.deleteIfExists(partFile);
+            }
+        }
+        Files.move(partFile, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Image saved as: " + outputFile.toAbsolutePath());
+        return outputFile.toString();
+    }
+
+    private static boolean isPng(Path file) throws IOException {
+        byte[] header = new byte[PNG_SIGNATURE.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.readNBytes(header, 0, header.length) == header.length && Arrays.equals(header, PNG_SIGNATURE);
+        }
+    }
+
+    // remembers whether reading from the wrapped stream failed, to tell transport errors from local ones
+    private static class ReadFailureTrackingInputStream extends FilterInputStream {
+        private boolean failed = false;
+
+        ReadFailureTrackingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        boolean hasFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * Reads the value of a JSON string field as a stream of bytes. Only suitable for values that are
+     * plain ASCII apart from escaped slashes and line breaks, like base64 data.
+     */
+    private static class JsonStringFieldInputStream extends InputStream {
+        private final InputStream in;
+        private boolean finished = false;
+
+        private JsonStringFieldInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Skips the input up to the start of the value of the first field with the given name.
+         * Returns null if there is no such field.
+         */
+        static InputStream open(InputStream in, String fieldName) throws IOException {
+            byte[] key = ("\"" + fieldName + "\"").getBytes(StandardCharsets.US_ASCII);
+            int matched = 0;
+            int c;
+            while (matched < key.length && (c = in.read()) != -1) {
+                if (c == key[matched]) {
+                    matched++;
+                } else {
+                    matched = c == key[0] ? 1 : 0;
                 }
             }
-            URI uri = new URI(imageUrl);
-            BufferedImage image = ImageIO.read(uri.toURL());
-            File outputFile = new File(defaultImagePath, destinationFile);
-            ImageIO.write(image, "png", outputFile);
-            System.out.println("Image saved as: " + outputFile.getAbsolutePath());
-        } catch (IOException | URISyntaxException e) {
-            System.out.println("Failed to save image:");
-            e.printStackTrace();
+            if (matched < key.length) {
+                return null;
+            }
+            // skip the colon and whitespace up to the opening quote
+            while ((c = in.read()) != -1 && c != '"') {
+                if (c != ':' && !Character.isWhitespace(c)) {
+                    return null;
+                }
+            }
+            return c == '"' ? new JsonStringFieldInputStream(in) : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (!finished) {
+                int c = in.read();
+                if (c == -1 || c == '"') {
+                    finished = true;
+                } else if (c == '\\') {
+                    int escaped = in.read();
+                    if (escaped == '/' || escaped == '\\') {
+                        return escaped;
+                    }
+                    // other escapes (\n, \r, ...) are not part of the data
+                } else {
+                    return c;
+                }
+            }
+            return -1;
         }
     }
-}
\ No newline at end of file
+}
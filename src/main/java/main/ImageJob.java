@@ -0,0 +1,7 @@
+package main;
+
+/**
+ * One image to generate in a batch: the passphrase to visualize and the file name to save the image as.
+ */
+public record ImageJob(String passphrase, String outputFilename) {
+}
@@ -0,0 +1,445 @@
+package main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Persistent queue of image generation jobs between the UI and the {@link ImageGenerator}.
+ * <p>
+ * Every job is written to a {@link WriteAheadLog} ("+," job) when it is submitted and marked as done
+ * ("-," file name) when it finished, so jobs that were still open when the application was closed are
+ * resumed on the next start. A job is identified by its output file name, which is unique, and the entry
+ * of a job is the one that points to the image path of that file name until the image is generated. The
+ * password of the entry is looked up in the {@link CredentialStore} when the job runs, and the job is
+ * dropped if the entry no longer exists.
+ * <p>
+ * Interactive jobs (new entries) are always taken before backfill jobs (missing images). A job for an
+ * output file name that is already queued is coalesced with the queued one. A fixed number of workers runs the
+ * jobs, which should match the number of requests the image endpoint can handle at a time.
+ * <p>
+ * Several instances can share the log. Appends are serialized by a lock file next to it, and once an
+ * instance has no open jobs left it compacts the log to the jobs that are still open in any instance,
+ * instead of deleting it. An instance that starts resumes the open jobs of all instances; a job that
+ * another instance finished in the meantime finds no entry pointing to its file anymore and is dropped.
+ */
+public class ImageJobQueue {
+    private static final String ADD_PREFIX = "+,";
+    private static final String DONE_PREFIX = "-,";
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKFILL
+    }
+
+    /**
+     * Generation of the image of the entry of the user that points to the image path of outputFilename.
+     */
+    public record Job(Priority priority, String username, String website, String date, String outputFilename) {
+        private Job withPriority(Priority priority) {
+            return new Job(priority, username, website, date, outputFilename);
+        }
+    }
+
+    @FunctionalInterface
+    public interface JobListener {
+        /**
+         * Called from a worker thread after a job finished. imagePath is null if no image was generated.
+         */
+        void jobFinished(Job job, String imagePath);
+    }
+
+    private final Path logFile;
+    // log that is being compacted into the current log
+    private final Path compactingLogFile;
+    private final WriteAheadLog log;
+    private final SharedFileLock appendLock;
+    private final SharedFileLock compactionLock;
+    private final CredentialStore credentialStore;
+    private final ImageGenerator imageGenerator;
+    private final Object lock = new Object();
+    private final Deque<Job> interactiveJobs = new ArrayDeque<>();
+    private final Deque<Job> backfillJobs = new ArrayDeque<>();
+    // queued and running jobs
+    private final Map<String, Job> openJobs = new HashMap<>();
+    private final Set<String> runningJobs = new HashSet<>();
+    private final Map<String, CompletableFuture<String>> results = new HashMap<>();
+    private final Map<String, Long> submittedAt = new HashMap<>();
+    private volatile JobListener listener = null;
+    private boolean stopped = false;
+
+    private long finishedJobs = 0;
+    private long failedJobs = 0;
+    private long totalWaitNanos = 0;
+    private long totalRunNanos = 0;
+    private long startedAt = 0;
+
+    public ImageJobQueue(String logFile, CredentialStore credentialStore, ImageGenerator imageGenerator) {
+        this.logFile = Path.of(logFile);
+        this.compactingLogFile = Path.of(logFile + ".compacting");
+        this.log = new WriteAheadLog(this.logFile, WriteAheadLog.DurabilityMode.GROUP);
+        Path lockFile = Path.of(logFile + ".lock");
+        this.appendLock = new SharedFileLock(lockFile, 0);
+        this.compactionLock = new SharedFileLock(lockFile, 1);
+        this.log.setSharedLock(appendLock);
+        this.credentialStore = credentialStore;
+        this.imageGenerator = imageGenerator;
+    }
+
+    public void setListener(JobListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queues the jobs that were not finished before the last shutdown and starts the workers.
+     * Returns the number of resumed jobs.
+     */
+    public int start(int workerCount) {
+        Map<String, Job> unfinished = new LinkedHashMap<>();
+        try {
+            // no other instance may compact while the logs are read
+            compactionLock.lock();
+            try {
+                // a left over compacting log means the last compaction did not finish
+                replayJobs(compactingLogFile, unfinished);
+                replayJobs(logFile, unfinished);
+            } finally {
+                compactionLock.unlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading the image job log.");
+        }
+        synchronized (lock) {
+            startedAt = System.nanoTime();
+            for (Job job : unfinished.values()) {
+                enqueue(job);
+            }
+            for (int i = 0; i < workerCount; i++) {
+                Thread.ofPlatform().name("image-job-" + i).daemon(true).start(this::work);
+            }
+        }
+        if (!unfinished.isEmpty()) {
+            System.out.println("Resuming " + unfinished.size() + " image jobs.");
+        }
+        return unfinished.size();
+    }
+
+    // collects the jobs of the log file that were not marked as done
+    private static void replayJobs(Path file, Map<String, Job> unfinished) throws IOException {
+        RecordCodec codec = new RecordCodec();
+        String[] fields = new String[5];
+        WriteAheadLog.replay(file, line -> {
+            if (line.startsWith(ADD_PREFIX) && codec.parse(line, 2, fields) == 5) {
+                Job job = new Job(Priority.valueOf(fields[0]), fields[1], fields[2], fields[3], fields[4]);
+                // a later record of the same file is a job moved up to interactive
+                unfinished.put(job.outputFilename(), job);
+            } else if (line.startsWith(DONE_PREFIX) && codec.parse(line, 2, fields) == 1) {
+                unfinished.remove(fields[0]);
+            }
+        });
+    }
+
+    /**
+     * Queues the generation of the image of the record. The future completes with the image path, or null
+     * if no image was generated. The record has to point to the image path of outputFilename already. If a
+     * job for the file is already open its future is returned, and a queued backfill job is moved up when an
+     * interactive job is submitted for the same file.
+     */
+    public CompletableFuture<String> submit(Priority priority, CredentialRecord record, String outputFilename) {
+        Job job = new Job(priority, record.username(), record.website(), record.date(), outputFilename);
+        long sequence = -1;
+        CompletableFuture<String> result;
+        synchronized (lock) {
+            String key = job.outputFilename();
+            Job openJob = openJobs.get(key);
+            if (openJob != null) {
+                if (priority == Priority.INTERACTIVE && openJob.priority() == Priority.BACKFILL
+                        && !runningJobs.contains(key) && backfillJobs.remove(openJob)) {
+                    Job upgraded = openJob.withPriority(Priority.INTERACTIVE);
+                    openJobs.put(key, upgraded);
+                    interactiveJobs.addLast(upgraded);
+                    sequence = logJob(upgraded);
+                }
+                result = results.computeIfAbsent(key, _ -> new CompletableFuture<>());
+            } else {
+                sequence = logJob(job);
+                enqueue(job);
+                result = results.computeIfAbsent(key, _ -> new CompletableFuture<>());
+            }
+        }
+        awaitDurable(sequence);
+        return result;
+    }
+
+    /**
+     * Drops all jobs that have not started yet. Their futures are cancelled.
+     */
+    public void cancelPending() {
+        List<Job> cancelled = new ArrayList<>();
+        synchronized (lock) {
+            cancelled.addAll(interactiveJobs);
+            cancelled.addAll(backfillJobs);
+            interactiveJobs.clear();
+            backfillJobs.clear();
+        }
+        for (Job job : cancelled) {
+            finish(job, null, 0, 0);
+        }
+    }
+
+    /**
+     * Stops the workers once their current job is done. Open jobs stay in the log and are resumed by the
+     * next {@link #start(int)}.
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            lock.notifyAll();
+            if (finishedJobs > 0) {
+                System.out.printf("Image jobs: %d finished (%d without image), average wait %.0f ms, average run %.0f ms, %.1f jobs/min.%n",
+                        finishedJobs, failedJobs, getAverageWaitMillis(), getAverageRunMillis(), getThroughputPerMinute());
+            }
+        }
+        try {
+            log.close();
+            appendLock.close();
+            compactionLock.close();
+        } catch (IOException e) {
+            System.out.println("Error closing the image job log.");
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            long waitNanos;
+            synchronized (lock) {
+                while (!stopped && interactiveJobs.isEmpty() && backfillJobs.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) {
+                    return;
+                }
+                job = interactiveJobs.isEmpty() ? backfillJobs.pollFirst() : interactiveJobs.pollFirst();
+                runningJobs.add(job.outputFilename());
+                waitNanos = System.nanoTime() - submittedAt.getOrDefault(job.outputFilename(), System.nanoTime());
+            }
+            long start = System.nanoTime();
+            String imagePath = null;
+            try {
+                imagePath = run(job);
+            } catch (RuntimeException e) {
+                System.out.println("Error generating image:");
+                e.printStackTrace();
+            }
+            finish(job, imagePath, waitNanos, System.nanoTime() - start);
+        }
+    }
+
+    private String run(Job job) {
+        CredentialRecord record = findRecord(job);
+        if (record == null) {
+            System.out.println("Entry of image job " + job.outputFilename() + " no longer exists.");
+            return null;
+        }
+        // new entries get the fallback image like before, backfill jobs leave the entry as it is if the
+        // generation fails
+        boolean newEntry = job.priority() == Priority.INTERACTIVE;
+        String imagePath = imageGenerator.generateImage(record.password(), job.outputFilename(), newEntry);
+        // the entry already points to the image file, unless the image was put into the image store; it is
+        // looked up again because it may have been edited or deleted during the generation
+        if (imagePath == null) {
+            return null;
+        }
+        try {
+            if (!credentialStore.replaceImagePath(job.username(), record.imagePath(), imagePath)) {
+                System.out.println("Entry of image job " + job.outputFilename() + " was deleted during the generation.");
+                imageGenerator.discardImage(imagePath);
+                return null;
+            }
+        } catch (IOException e) {
+            System.out.println("Error saving the image of job " + job.outputFilename() + ".");
+            imageGenerator.discardImage(imagePath);
+            return null;
+        }
+        return imagePath;
+    }
+
+    // the website may have been edited in the meantime, the image path still identifies the entry
+    private CredentialRecord findRecord(Job job) {
+        String imagePath = imageGenerator.getImagePath(job.outputFilename());
+        for (CredentialRecord record : credentialStore.entriesFor(job.username())) {
+            if (imagePath.equals(record.imagePath())) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private void finish(Job job, String imagePath, long waitNanos, long runNanos) {
+        String key = job.outputFilename();
+        CompletableFuture<String> result;
+        synchronized (lock) {
+            openJobs.remove(key);
+            runningJobs.remove(key);
+            submittedAt.remove(key);
+            result = results.remove(key);
+            if (runNanos > 0) {
+                finishedJobs++;
+                totalWaitNanos += waitNanos;
+                totalRunNanos += runNanos;
+                if (imagePath == null) {
+                    failedJobs++;
+                }
+            }
+            try {
+                log.enqueue(DONE_PREFIX + RecordCodec.join(job.outputFilename()));
+                if (openJobs.isEmpty() && !stopped) {
+                    // nothing left to resume here, other instances may still have open jobs in the log
+                    compact();
+                }
+            } catch (IOException e) {
+                // after stop the job is simply run again on the next start
+                if (!stopped) {
+                    System.out.println("Error saving the image job.");
+                }
+            }
+        }
+        if (result != null) {
+            if (runNanos == 0) {
+                result.cancel(false);
+            } else {
+                result.complete(imagePath);
+            }
+        }
+        JobListener jobListener = listener;
+        if (jobListener != null) {
+            jobListener.jobFinished(job, imagePath);
+        }
+    }
+
+    private void enqueue(Job job) {
+        String key = job.outputFilename();
+        openJobs.put(key, job);
+        submittedAt.put(key, System.nanoTime());
+        if (job.priority() == Priority.INTERACTIVE) {
+            interactiveJobs.addLast(job);
+        } else {
+            backfillJobs.addLast(job);
+        }
+        lock.notifyAll();
+    }
+
+    // moves the log aside and appends the jobs of it that are still open to the new log; skipped while
+    // another instance compacts
+    private void compact() throws IOException {
+        if (!compactionLock.tryLock()) {
+            return;
+        }
+        try {
+            // an earlier compaction that did not finish is completed instead, the current log then stays
+            if (!Files.exists(compactingLogFile)) {
+                log.rotateTo(compactingLogFile);
+            }
+            Map<String, Job> unfinished = new LinkedHashMap<>();
+            replayJobs(compactingLogFile, unfinished);
+            long sequence = -1;
+            for (Job job : unfinished.values()) {
+                sequence = log.enqueue(jobRecord(job));
+            }
+            if (sequence >= 0) {
+                log.awaitDurable(sequence);
+            }
+            Files.deleteIfExists(compactingLogFile);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private static String jobRecord(Job job) {
+        return ADD_PREFIX + RecordCodec.join(job.priority().name(), job.username(), job.website(), job.date(), job.outputFilename());
+    }
+
+    private long logJob(Job job) {
+        try {
+            return log.enqueue(jobRecord(job));
+        } catch (IOException e) {
+            System.out.println("Error saving the image job, it will not be resumed after a restart.");
+            return -1;
+        }
+    }
+
+    private void awaitDurable(long sequence) {
+        if (sequence < 0) {
+            return;
+        }
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            System.out.println("Error saving the image job.");
+        }
+    }
+
+    public int getQueuedJobs() {
+        synchronized (lock) {
+            return interactiveJobs.size() + backfillJobs.size();
+        }
+    }
+
+    public int getRunningJobs() {
+        synchronized (lock) {
+            return runningJobs.size();
+        }
+    }
+
+    public long getFinishedJobs() {
+        synchronized (lock) {
+            return finishedJobs;
+        }
+    }
+
+    /**
+     * Average time jobs waited in the queue before a worker took them.
+     */
+    public double getAverageWaitMillis() {
+        synchronized (lock) {
+            return finishedJobs == 0 ? 0 : totalWaitNanos / 1e6 / finishedJobs;
+        }
+    }
+
+    /**
+     * Average time a worker spent on a job.
+     */
+    public double getAverageRunMillis() {
+        synchronized (lock) {
+            return finishedJobs == 0 ? 0 : totalRunNanos / 1e6 / finishedJobs;
+        }
+    }
+
+    /**
+     * Finished jobs per minute since the queue was started.
+     */
+    public double getThroughputPerMinute() {
+        synchronized (lock) {
+            long elapsedNanos = System.nanoTime() - startedAt;
+            return elapsedNanos <= 0 ? 0 : finishedJobs * 60e9 / elapsedNanos;
+        }
+    }
+}
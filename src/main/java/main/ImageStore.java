@@ -0,0 +1,652 @@
+package main;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/**
+ * Content addressed store of the generated images.
+ * <p>
+ * Images are identified by the SHA-256 hash of their PNG bytes, so an image that is stored twice (e.g. the
+ * fallback image) takes the space only once. Entries refer to an image with the path {@code pack:<hash>}.
+ * A thumbnail of {@link #THUMBNAIL_SIZE} pixels is created when an image is stored, so the table only
+ * reads and decodes the thumbnail.
+ * <p>
+ * Images up to {@link #DEFAULT_MAX_PACKED_BYTES} and all thumbnails are appended to a pack file and read
+ * with positional reads; larger images are stored as {@code <hash>.png}. The index file is a
+ * {@link WriteAheadLog} of the following records:
+ * <ul>
+ *     <li>{@code p,generation} - number of the pack file, only in the first line</li>
+ *     <li>{@code b,hash,offset,length,thumbnailOffset,thumbnailLength,references} - a stored image, offset
+ *     -1 if the image is stored as a separate file</li>
+ *     <li>{@code +,hash} and {@code -,hash} - a reference was added or released</li>
+ * </ul>
+ * Releasing the last reference only updates the index. Once enough space is unused, the pack file is
+ * rewritten in the background without the unreferenced images.
+ * <p>
+ * Several processes can use the same image directory. Storing, releasing, compacting and loading hold a
+ * {@link SharedFileLock} on {@code images.lock} and first apply the index records that the other processes
+ * appended, so reference counts are shared and only one process writes to the pack at a time. Reads of
+ * images that are not known yet, or whose pack was replaced by another process, catch up with the index
+ * and are tried once more.
+ */
+public class ImageStore implements Closeable {
+    public static final String PATH_PREFIX = "pack:";
+    public static final int THUMBNAIL_SIZE = 200;
+    public static final long DEFAULT_MAX_PACKED_BYTES = 1024 * 1024;
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 4L * 1024 * 1024;
+
+    private static final String INDEX_FILE = "images.idx";
+    private static final String LOCK_FILE = "images.lock";
+    private static final String PACK_PREFIX = "images-";
+    private static final String PACK_SUFFIX = ".pack";
+    private static final String IMAGE_SUFFIX = ".png";
+
+    // position of an image and its thumbnail, offset -1 if the image is a separate file
+    private record Blob(long offset, int length, long thumbnailOffset, int thumbnailLength) {
+    }
+
+    private final Path directory;
+    private final Path indexFile;
+    // only reads of the pack file run in parallel, writes and the compaction have the store for themselves
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("image-store-compaction").daemon(true).factory());
+    private final WriteAheadLog index;
+    // appends to the index, held by the log for every batch
+    private final SharedFileLock indexLock;
+    // everything else that changes the files, always taken before indexLock
+    private final SharedFileLock storeLock;
+    // parsing the index, guarded by the write lock
+    private final RecordCodec codec = new RecordCodec();
+    private final String[] fields = new String[7];
+    private FileChannel pack = null;
+    private long generation = 0;
+    private long unusedBytes = 0;
+    private boolean compactionScheduled = false;
+    private long maxPackedBytes = DEFAULT_MAX_PACKED_BYTES;
+    private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    public ImageStore(String directory) {
+        this.directory = Path.of(directory);
+        this.indexFile = this.directory.resolve(INDEX_FILE);
+        this.index = new WriteAheadLog(indexFile, WriteAheadLog.DurabilityMode.GROUP);
+        Path lockFile = this.directory.resolve(LOCK_FILE);
+        this.indexLock = new SharedFileLock(lockFile, 0);
+        this.storeLock = new SharedFileLock(lockFile, 1);
+        this.index.setSharedLock(indexLock);
+    }
+
+    public static boolean isStored(String imagePath) {
+        return imagePath != null && imagePath.startsWith(PATH_PREFIX);
+    }
+
+    /**
+     * Whether a file of the store directory belongs to the store, i.e. it is the index, the lock file, a pack
+     * or a large image, so that others leave it to the store.
+     */
+    public static boolean isStoreFile(String fileName) {
+        return fileName.startsWith(INDEX_FILE) || fileName.equals(LOCK_FILE)
+                || (fileName.startsWith(PACK_PREFIX) && fileName.endsWith(PACK_SUFFIX))
+                || fileName.matches("[0-9a-f]{64}" + Pattern.quote(IMAGE_SUFFIX));
+    }
+
+    /**
+     * Images larger than this are stored as separate files instead of in the pack file.
+     */
+    public void setMaxPackedBytes(long maxPackedBytes) {
+        this.maxPackedBytes = maxPackedBytes;
+    }
+
+    /**
+     * How many bytes of the pack file have to be unused before it is compacted.
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Reads the index. Images of a pack file that an interrupted compaction did not finish are discarded.
+     */
+    public void load() {
+        lock.writeLock().lock();
+        try {
+            lockStore();
+            try {
+                reload();
+                // no other process is compacting while the lock is held, so other packs are left over
+                deleteOtherPacks();
+            } finally {
+                storeLock.unlock();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error loading the image index:");
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the images that other processes stored, released or compacted since the last load or refresh.
+     */
+    public void refresh() {
+        lock.writeLock().lock();
+        try {
+            lockStore();
+            try {
+                catchUp();
+            } finally {
+                storeLock.unlock();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error reading the image index:");
+            e.printStackTrace();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the PNG image and returns its path. If the same image is already stored, only a reference
+     * to it is added.
+     */
+    public String put(byte[] png) throws IOException {
+        String hash = hash(png);
+        lock.writeLock().lock();
+        try {
+            lockStore();
+        } catch (IOException e) {
+            lock.writeLock().unlock();
+            throw e;
+        }
+        try {
+            catchUp();
+            if (blobs.containsKey(hash)) {
+                int count = references.merge(hash, 1, Integer::sum);
+                if (count == 1) {
+                    unusedBytes -= packedBytes(blobs.get(hash));
+                }
+                index.append(RecordCodec.join("+", hash));
+                return PATH_PREFIX + hash;
+            }
+            byte[] thumbnail = createThumbnail(png);
+            long offset = -1;
+            if (png.length <= maxPackedBytes) {
+                offset = appendToPack(png);
+            } else {
+                Files.write(directory.resolve(hash + IMAGE_SUFFIX), png);
+            }
+            long thumbnailOffset = appendToPack(thumbnail);
+            // the index may only point to data that is on disk
+            pack.force(false);
+            Blob blob = new Blob(offset, png.length, thumbnailOffset, thumbnail.length);
+            blobs.put(hash, blob);
+            references.put(hash, 1);
+            index.append(blobRecord(hash, blob, 1));
+            return PATH_PREFIX + hash;
+        } finally {
+            storeLock.unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the PNG bytes of the image, or null if the store does not contain it.
+     */
+    public byte[] read(String imagePath) throws IOException {
+        return readStored(hashOf(imagePath), false);
+    }
+
+    /**
+     * Reads the PNG bytes of the thumbnail of the image, or null if the store does not contain it.
+     */
+    public byte[] readThumbnail(String imagePath) throws IOException {
+        return readStored(hashOf(imagePath), true);
+    }
+
+    /**
+     * Whether the image is stored and referenced, also if another process stored it.
+     */
+    public boolean contains(String imagePath) {
+        if (!isStored(imagePath)) {
+            return false;
+        }
+        if (isReferenced(hashOf(imagePath))) {
+            return true;
+        }
+        refresh();
+        return isReferenced(hashOf(imagePath));
+    }
+
+    /**
+     * Releases a reference to the image. The image stays readable until the pack file is compacted.
+     */
+    public void release(String imagePath) {
+        String hash = hashOf(imagePath);
+        lock.writeLock().lock();
+        try {
+            lockStore();
+        } catch (IOException e) {
+            System.out.println("Error saving the image index.");
+            lock.writeLock().unlock();
+            return;
+        }
+        try {
+            catchUp();
+            Integer count = references.get(hash);
+            if (count == null || count == 0) {
+                return;
+            }
+            references.put(hash, count - 1);
+            index.append(RecordCodec.join("-", hash));
+            if (count == 1) {
+                unusedBytes += packedBytes(blobs.get(hash));
+                if (unusedBytes >= compactionThreshold && !compactionScheduled) {
+                    compactionScheduled = true;
+                    compactionExecutor.execute(this::compact);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error saving the image index.");
+        } finally {
+            storeLock.unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the pack file and the index with the referenced images only.
+     */
+    public void compact() {
+        lock.writeLock().lock();
+        try {
+            compactionScheduled = false;
+            lockStore();
+        } catch (IOException e) {
+            System.out.println("Error compacting the image pack:");
+            e.printStackTrace();
+            lock.writeLock().unlock();
+            return;
+        }
+        try {
+            catchUp();
+            long nextGeneration = generation + 1;
+            Path nextPackFile = packFile(nextGeneration);
+            Path nextIndexFile = directory.resolve(INDEX_FILE + ".tmp");
+            Map<String, Blob> liveBlobs = new HashMap<>();
+            List<String> records = new ArrayList<>();
+            records.add(RecordCodec.join("p", Long.toString(nextGeneration)));
+            try (FileChannel target = FileChannel.open(nextPackFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+                    String hash = entry.getKey();
+                    Blob blob = entry.getValue();
+                    int count = references.getOrDefault(hash, 0);
+                    if (count == 0) {
+                        continue;
+                    }
+                    long offset = blob.offset() < 0 ? -1 : copy(blob.offset(), blob.length(), target);
+                    long thumbnailOffset = copy(blob.thumbnailOffset(), blob.thumbnailLength(), target);
+                    Blob moved = new Blob(offset, blob.length(), thumbnailOffset, blob.thumbnailLength());
+                    liveBlobs.put(hash, moved);
+                    records.add(blobRecord(hash, moved, count));
+                }
+                target.force(true);
+            }
+            Files.write(nextIndexFile, records);
+            try (FileChannel channel = FileChannel.open(nextIndexFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            // the previous index is kept until the new one is in place, see load
+            index.rotateTo(previousIndexFile());
+            Files.move(nextIndexFile, indexFile, StandardCopyOption.ATOMIC_MOVE);
+            // the records of the new index are applied already
+            index.replay(_ -> {
+            });
+            Files.deleteIfExists(previousIndexFile());
+            closePack();
+            try {
+                Files.deleteIfExists(packFile(generation));
+            } catch (IOException e) {
+                // still open in another process on some file systems, deleted by the next load
+                System.out.println("Could not delete the old image pack yet.");
+            }
+            for (String hash : blobs.keySet()) {
+                if (!liveBlobs.containsKey(hash)) {
+                    Files.deleteIfExists(directory.resolve(hash + IMAGE_SUFFIX));
+                    references.remove(hash);
+                }
+            }
+            long removedBytes = unusedBytes;
+            blobs.clear();
+            blobs.putAll(liveBlobs);
+            generation = nextGeneration;
+            unusedBytes = 0;
+            System.out.println("Compacted the image pack, " + removedBytes / 1024 + " KB freed.");
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error compacting the image pack:");
+            e.printStackTrace();
+        } finally {
+            storeLock.unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes all images, thumbnails and the index.
+     */
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            lockStore();
+        } catch (IOException e) {
+            lock.writeLock().unlock();
+            throw e;
+        }
+        try {
+            catchUp();
+            closePack();
+            index.delete();
+            for (String hash : blobs.keySet()) {
+                Files.deleteIfExists(directory.resolve(hash + IMAGE_SUFFIX));
+            }
+            Files.deleteIfExists(packFile(generation));
+            blobs.clear();
+            references.clear();
+            generation = 0;
+            unusedBytes = 0;
+        } finally {
+            storeLock.unlock();
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) references.values().stream().filter(count -> count > 0).count();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getUnusedBytes() {
+        lock.readLock().lock();
+        try {
+            return unusedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            closePack();
+            index.close();
+            indexLock.close();
+            storeLock.close();
+        } catch (IOException e) {
+            System.out.println("Error closing the image store.");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Scales the image so that its longer side is {@link #THUMBNAIL_SIZE} pixels.
+     */
+    static byte[] createThumbnail(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "png", out);
+        return out.toByteArray();
+    }
+
+    private void lockStore() throws IOException {
+        Files.createDirectories(directory);
+        storeLock.lock();
+    }
+
+    // reads the whole index, with the store lock held
+    private void reload() throws IOException {
+        blobs.clear();
+        references.clear();
+        generation = 0;
+        closePack();
+        Path previousIndex = previousIndexFile();
+        // a compaction was interrupted before the new index was in place
+        if (!Files.exists(indexFile) && Files.exists(previousIndex)) {
+            Files.move(previousIndex, indexFile);
+        }
+        index.replay(this::apply);
+        Files.deleteIfExists(previousIndex);
+        countUnusedBytes();
+    }
+
+    // applies the index records other processes appended, with the store lock held
+    private void catchUp() throws IOException {
+        if (!index.readAppended(this::apply)) {
+            // another process compacted or cleared the store
+            reload();
+            return;
+        }
+        countUnusedBytes();
+    }
+
+    private void apply(String line) {
+        int count = codec.parse(line, 0, fields);
+        if (count < 2) {
+            return;
+        }
+        switch (fields[0]) {
+            case "p" -> generation = Long.parseLong(fields[1]);
+            case "b" -> {
+                if (count == 7) {
+                    blobs.put(fields[1], new Blob(Long.parseLong(fields[2]), Integer.parseInt(fields[3]),
+                            Long.parseLong(fields[4]), Integer.parseInt(fields[5])));
+                    references.put(fields[1], Integer.parseInt(fields[6]));
+                }
+            }
+            case "+" -> references.merge(fields[1], 1, Integer::sum);
+            case "-" -> references.computeIfPresent(fields[1], (_, value) -> Math.max(0, value - 1));
+            default -> System.out.println("Skipping unknown image index record.");
+        }
+    }
+
+    private void countUnusedBytes() {
+        unusedBytes = 0;
+        for (Map.Entry<String, Blob> blob : blobs.entrySet()) {
+            if (references.getOrDefault(blob.getKey(), 0) == 0) {
+                unusedBytes += packedBytes(blob.getValue());
+            }
+        }
+    }
+
+    private boolean isReferenced(String hash) {
+        lock.readLock().lock();
+        try {
+            return references.getOrDefault(hash, 0) > 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // another process may have stored the image, or compacted the pack, since the index was last read
+    private byte[] readStored(String hash, boolean thumbnail) throws IOException {
+        try {
+            byte[] bytes = readKnown(hash, thumbnail);
+            if (bytes != null) {
+                return bytes;
+            }
+        } catch (NoSuchFileException e) {
+            // read again below
+        }
+        refresh();
+        return readKnown(hash, thumbnail);
+    }
+
+    private byte[] readKnown(String hash, boolean thumbnail) throws IOException {
+        lock.readLock().lock();
+        try {
+            Blob blob = blobs.get(hash);
+            if (blob == null) {
+                return null;
+            }
+            if (thumbnail) {
+                return readFromPack(blob.thumbnailOffset(), blob.thumbnailLength());
+            }
+            if (blob.offset() < 0) {
+                return Files.readAllBytes(directory.resolve(hash + IMAGE_SUFFIX));
+            }
+            return readFromPack(blob.offset(), blob.length());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long appendToPack(byte[] bytes) throws IOException {
+        FileChannel channel = openPack(true);
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return offset;
+    }
+
+    private byte[] readFromPack(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        FileChannel channel = openPack(false);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Image pack is truncated.");
+            }
+            position += read;
+        }
+        return buffer.array();
+    }
+
+    private long copy(long offset, int length, FileChannel target) throws IOException {
+        long targetOffset = target.size();
+        long position = 0;
+        while (position < length) {
+            position += openPack(false).transferTo(offset + position, length - position, target);
+        }
+        return targetOffset;
+    }
+
+    // readers open the pack under the read lock, so opening it has to be synchronized; only writers create
+    // it, for readers a missing pack was replaced by another process
+    private synchronized FileChannel openPack(boolean create) throws IOException {
+        if (pack == null) {
+            Files.createDirectories(directory);
+            pack = create
+                    ? FileChannel.open(packFile(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(packFile(generation), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return pack;
+    }
+
+    private synchronized void closePack() throws IOException {
+        if (pack != null) {
+            pack.close();
+            pack = null;
+        }
+    }
+
+    private void deleteOtherPacks() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Path currentPack = packFile(generation);
+        try (DirectoryStream<Path> packs = Files.newDirectoryStream(directory, PACK_PREFIX + "*" + PACK_SUFFIX)) {
+            for (Path file : packs) {
+                if (!file.equals(currentPack)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private Path packFile(long generation) {
+        return directory.resolve(PACK_PREFIX + generation + PACK_SUFFIX);
+    }
+
+    private Path previousIndexFile() {
+        return directory.resolve(INDEX_FILE + ".old");
+    }
+
+    private static long packedBytes(Blob blob) {
+        return (blob.offset() < 0 ? 0 : blob.length()) + blob.thumbnailLength();
+    }
+
+    private static String blobRecord(String hash, Blob blob, int references) {
+        return RecordCodec.join("b", hash, Long.toString(blob.offset()), Integer.toString(blob.length()),
+                Long.toString(blob.thumbnailOffset()), Integer.toString(blob.thumbnailLength()), Integer.toString(references));
+    }
+
+    private static String hashOf(String imagePath) {
+        return imagePath.substring(PATH_PREFIX.length());
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
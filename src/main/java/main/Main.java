@@ -1,31 +1,60 @@
 package main;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
-import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.control.cell.TextFieldTableCell;
-import javafx.scene.image.ImageView;
+import javafx.scene.image.Image;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 public class Main extends Application {
-    private static final String ACCOUNTS_FILE = "accounts.txt";
-    private static final String PASSWORDS_FILE = "passwords.txt";
-    private final List<main.PasswordEntry> entries = new ArrayList<>();
+    private static final String ACCOUNTS_FILE = Cli.ACCOUNTS_FILE;
+    private static final String PASSWORDS_FILE = Cli.PASSWORDS_FILE;
+    private static final String PASSWORDS_LOG_FILE = Cli.PASSWORDS_LOG_FILE;
+    private static final String VAULT_FILE = Cli.VAULT_FILE;
+    private static final String IMAGE_JOBS_FILE = "image-jobs.log";
+    private static final String IMAGES_DIRECTORY = Cli.IMAGES_DIRECTORY;
+    private static final String PLACEHOLDER_IMAGE = "default.jpeg";
+    private static final long IMAGE_CACHE_BYTES = Long.getLong("images.cacheBytes", 64L * 1024 * 1024);
+    private static final boolean PREFETCH_PROMPTS = Boolean.getBoolean("images.prefetch");
+    private static final Metrics.Timer LOGIN_TIMER = Metrics.timer("ui.login");
+    private static final Metrics.Timer FAILED_LOGIN_TIMER = Metrics.timer("ui.failedLogin");
+    private static final Metrics.Timer LOAD_ENTRIES_TIMER = Metrics.timer("ui.loadEntries");
+    private final ObservableList<PasswordEntry> entries = FXCollections.observableArrayList();
+    private final AccountStore accountStore = new AccountStore(ACCOUNTS_FILE);
+    private final CredentialStore credentialStore = new CredentialStore(PASSWORDS_FILE, PASSWORDS_LOG_FILE,
+            WriteAheadLog.DurabilityMode.valueOf(System.getProperty("passwords.durability", "GROUP")));
     private String loggedInUser = null;
+    private ImageGenerator imageGenerator = null;
+    private ImageJobQueue imageJobQueue = null;
+    private final ImageCache imageCache = new ImageCache(IMAGE_CACHE_BYTES);
+    private final ImageStore imageStore = new ImageStore(IMAGES_DIRECTORY);
+    private DataFileWatcher dataFileWatcher = null;
 
     private static TableColumn<PasswordEntry, String> getPasswordEntryStringTableColumn() {
         TableColumn<PasswordEntry, String> passwordColumn = new TableColumn<>("Password");
@@ -50,14 +79,81 @@ public class Main extends Application {
     }
 
     public static void main(String[] args) {
+        // command line mode without UI, see Cli
+        if (args.length > 0 && Cli.isCommand(args[0])) {
+            Cli.main(args);
+            return;
+        }
         launch(args);
     }
 
     @Override
     public void start(Stage primaryStage) {
+        accountStore.load();
+        credentialStore.load();
+        imageStore.load();
+        watchDataFiles();
         showLoginScreen(primaryStage);
     }
 
+    @Override
+    public void stop() {
+        if (dataFileWatcher != null) {
+            try {
+                dataFileWatcher.close();
+            } catch (IOException e) {
+                System.out.println("Error when closing the data file watcher.");
+            }
+        }
+        if (imageJobQueue != null) {
+            imageJobQueue.stop();
+        }
+        imageStore.close();
+        credentialStore.close();
+        if (Metrics.isEnabled()) {
+            System.out.print(Metrics.report());
+        }
+    }
+
+    // shows the changes of other instances that work on the same data files
+    private void watchDataFiles() {
+        credentialStore.setChangeListener(new CredentialStore.ChangeListener() {
+            @Override
+            public void entryAdded(CredentialRecord record) {
+                Platform.runLater(() -> {
+                    if (record.username().equals(loggedInUser)) {
+                        entries.add(new PasswordEntry(record));
+                    }
+                });
+            }
+
+            @Override
+            public void entryRemoved(CredentialRecord record) {
+                Platform.runLater(() -> entries.removeIf(entry -> entry.getRecord().equals(record)));
+            }
+
+            @Override
+            public void entriesReloaded() {
+                Platform.runLater(() -> {
+                    if (loggedInUser != null) {
+                        loadEntries();
+                    }
+                });
+            }
+        });
+        dataFileWatcher = new DataFileWatcher(Path.of(PASSWORDS_LOG_FILE).toAbsolutePath().getParent());
+        Runnable refreshEntries = credentialStore::refresh;
+        dataFileWatcher.watch(PASSWORDS_LOG_FILE, refreshEntries);
+        dataFileWatcher.watch(PASSWORDS_FILE, refreshEntries);
+        dataFileWatcher.watch(ACCOUNTS_FILE, accountStore::refresh);
+        try {
+            dataFileWatcher.start();
+        } catch (IOException e) {
+            System.out.println("Error watching the data files, changes of other instances are only seen after a restart.");
+            dataFileWatcher = null;
+        }
+    }
+
     private void showLoginScreen(Stage stage) {
         VBox loginLayout = new VBox(10);
         loginLayout.setPadding(new Insets(20));
@@ -77,11 +173,25 @@ public class Main extends Application {
 
         Button loginButton = new Button("Login with existing account");
         loginButton.setOnAction(_ -> {
-            if (login(usernameField.getText(), passwordField.getText())) {
-                showPasswordManager(stage);
-            } else {
-                messageLabel.setText("Login failed. Username or Password incorrect or missing.");
-            }
+            String username = usernameField.getText();
+            // controls may only be read on the FX thread
+            String password = passwordField.getText();
+            loginButton.setDisable(true);
+            messageLabel.setText("");
+            long start = Metrics.startTimer();
+            // the password hash is checked in the background, it takes too long for the FX thread
+            CompletableFuture.supplyAsync(() -> accountStore.verify(username, password))
+                    .whenCompleteAsync((valid, error) -> {
+                        loginButton.setDisable(false);
+                        if (error == null && valid) {
+                            login(username);
+                            showPasswordManager(stage);
+                            LOGIN_TIMER.stop(start);
+                        } else {
+                            FAILED_LOGIN_TIMER.stop(start);
+                            messageLabel.setText("Login failed. Username or Password incorrect or missing.");
+                        }
+                    }, Platform::runLater);
         });
 
         Button createAccountButton = getCreateAccountButton(usernameField, passwordField, messageLabel);
@@ -89,7 +199,7 @@ public class Main extends Application {
         Button clearAllDataButton = getClearAllDataButton(messageLabel);
 
         Button exitButton = new Button("Exit");
-        exitButton.setOnAction(_ -> System.exit(0));
+        exitButton.setOnAction(_ -> Platform.exit());
 
 
         loginLayout.getChildren().addAll(titleLabel, usernameField, passwordField, loginButton, createAccountButton, clearAllDataButton, exitButton, messageLabel);
@@ -121,53 +231,52 @@ public class Main extends Application {
     private Button getCreateAccountButton(TextField usernameField, PasswordField passwordField, Label messageLabel) {
         Button createAccountButton = new Button("Register new user");
         createAccountButton.setOnAction(_ -> {
-            if (createAccount(usernameField.getText(), passwordField.getText())) {
-                messageLabel.setText("Account successfully created!");
-            } else {
-                messageLabel.setText("Error: User name or password invalid or already taken.");
-            }
+            String username = usernameField.getText();
+            String password = passwordField.getText();
+            createAccountButton.setDisable(true);
+            // hashing the password takes too long for the FX thread
+            CompletableFuture.supplyAsync(() -> createAccount(username, password))
+                    .whenCompleteAsync((created, error) -> {
+                        createAccountButton.setDisable(false);
+                        if (error == null && created) {
+                            messageLabel.setText("Account successfully created!");
+                        } else {
+                            messageLabel.setText("Error: User name or password invalid or already taken.");
+                        }
+                    }, Platform::runLater);
         });
         return createAccountButton;
     }
 
-    private boolean login(String username, String password) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(ACCOUNTS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 2 && parts[0].equals(username) && parts[1].equals(password)) {
-                    loggedInUser = username;
-                    loadEntries();
-                    return true;
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Error reading the account file.");
-        }
-        return false;
+    private void login(String username) {
+        loggedInUser = username;
+        loadEntries();
     }
 
     private boolean createAccount(String username, String password) {
         if (username.isEmpty() || password.isEmpty()) return false;
 
-        if (isUsernameTaken(username)) {
+        if (accountStore.isUsernameTaken(username)) {
             System.out.println("Username is already taken.");
             return false;
         }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(ACCOUNTS_FILE, true))) {
-            writer.write(username + "," + password);
-            writer.newLine();
-            return true;
-        } catch (IOException e) {
-            System.out.println("Error saving the account.");
-        }
-        return false;
+        return accountStore.createAccount(username, password);
     }
 
     private void showPasswordManager(Stage stage) {
 
-        ImageGenerator imageGenerator = new ImageGenerator();
+        imageGenerator = new ImageGenerator();
+        imageGenerator.setImageStore(imageStore);
+        // one worker per request the image endpoint handles at a time, jobs left from the last run are resumed
+        imageJobQueue = new ImageJobQueue(IMAGE_JOBS_FILE, credentialStore, imageGenerator);
+        ImageGenerator generator = imageGenerator;
+        imageJobQueue.setListener((job, imagePath) -> {
+            if (imagePath != null) {
+                Platform.runLater(() -> showGeneratedImage(generator, job, imagePath));
+            }
+        });
+        imageJobQueue.start(imageGenerator.getMaxConcurrentGenerations());
 
         VBox mainLayout = new VBox(10);
         mainLayout.setPadding(new Insets(20));
@@ -181,48 +290,114 @@ public class Main extends Application {
 
         addEntryLayout.getChildren().addAll(websiteField, passwordField, addButton);
 
+        // start generating the prompt once the password has not changed for a moment, so that Add can go
+        // straight to the image request; a newer password cancels the request for the old one
+        if (PREFETCH_PROMPTS) {
+            PauseTransition prefetchDebounce = new PauseTransition(Duration.millis(700));
+            prefetchDebounce.setOnFinished(_ -> {
+                if (imageGenerator != null && !passwordField.getText().isEmpty()) {
+                    imageGenerator.prefetchPrompt(passwordField.getText());
+                }
+            });
+            passwordField.textProperty().addListener((_, _, password) -> {
+                if (password.isEmpty()) {
+                    prefetchDebounce.stop();
+                } else {
+                    prefetchDebounce.playFromStart();
+                }
+            });
+        }
+
+        // shows the state of the background image generation and allows to abort it
+        HBox generationLayout = new HBox(10);
+        Label generationStatusLabel = new Label();
+        Button cancelGenerationButton = new Button("Cancel image generation");
+        cancelGenerationButton.setOnAction(_ -> imageJobQueue.cancelPending());
+        generationLayout.getChildren().addAll(generationStatusLabel, cancelGenerationButton);
+
+        Timeline generationStatusUpdater = new Timeline(new KeyFrame(Duration.millis(500), _ -> {
+            int queued = imageJobQueue.getQueuedJobs();
+            int inFlight = imageJobQueue.getRunningJobs();
+            generationStatusLabel.setText(queued + inFlight == 0 ? "" :
+                    "Generating images: " + inFlight + " running, " + queued + " queued");
+            cancelGenerationButton.setDisable(queued + inFlight == 0);
+        }));
+        generationStatusUpdater.setCycleCount(Animation.INDEFINITE);
+        generationStatusUpdater.play();
+
         TableView<main.PasswordEntry> tableView = new TableView<>();
         TableColumn<PasswordEntry, String> websiteColumn = new TableColumn<>("Website");
         websiteColumn.setCellValueFactory(cellData -> cellData.getValue().websiteProperty());
         websiteColumn.setCellFactory(TextFieldTableCell.forTableColumn());
-        websiteColumn.setOnEditCommit(e -> e.getRowValue().setWebsite(e.getNewValue()));
+        websiteColumn.setOnEditCommit(e -> updateWebsite(e.getRowValue(), e.getNewValue()));
 
         TableColumn<PasswordEntry, String> passwordColumn = getPasswordEntryStringTableColumn();
 
         TableColumn<PasswordEntry, String> dateColumn = new TableColumn<>("Date/Time");
         dateColumn.setCellValueFactory(cellData -> cellData.getValue().dateProperty());
 
-        TableColumn<PasswordEntry, ImageView> pictureColumn = new TableColumn<>("Gedächtnisbild");
-        pictureColumn.setCellValueFactory(new PropertyValueFactory<>("imageView")); // https://stackoverflow.com/questions/24933164/javafx-adding-image-in-tableview
+        // images are loaded by the cells, so only the visible rows decode their image
+        Image placeholderImage = new File(PLACEHOLDER_IMAGE).exists() ? ThumbnailTableCell.loadThumbnail(PLACEHOLDER_IMAGE) : null;
+        TableColumn<PasswordEntry, String> pictureColumn = new TableColumn<>("Gedächtnisbild");
+        pictureColumn.setCellValueFactory(cellData -> cellData.getValue().displayedImagePathProperty());
+        pictureColumn.setCellFactory(_ -> new ThumbnailTableCell<>(imageCache, imageStore, placeholderImage));
 
         //noinspection unchecked
         tableView.getColumns().addAll(websiteColumn, passwordColumn, dateColumn, pictureColumn);
-        tableView.getItems().addAll(entries);
         tableView.setEditable(true);
 
+        // the table shows a filtered and sorted view of entries, so changes to entries show up directly
+        FilteredList<PasswordEntry> filteredEntries = new FilteredList<>(entries);
+        SortedList<PasswordEntry> sortedEntries = new SortedList<>(filteredEntries);
+        sortedEntries.comparatorProperty().bind(tableView.comparatorProperty());
+        tableView.setItems(sortedEntries);
+
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search website");
+        // filter only once typing pauses, not on every key stroke
+        PauseTransition searchDebounce = new PauseTransition(Duration.millis(150));
+        searchDebounce.setOnFinished(_ -> {
+            String query = searchField.getText().trim().toLowerCase(Locale.ROOT);
+            filteredEntries.setPredicate(query.isEmpty() ? null : entry -> entry.getSearchKey().contains(query));
+        });
+        searchField.textProperty().addListener((_, _, _) -> searchDebounce.playFromStart());
+
         addButton.setOnAction(_ -> {
             String website = websiteField.getText();
             String password = passwordField.getText();
             if (!website.isEmpty() && !password.isEmpty()) {
-                String date = LocalDateTime.now().format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm"));
-                // generate image
-                String filename = loggedInUser + "_" + website + LocalDateTime.now().format(DateTimeFormatter.ofPattern("_yyyyMMdd_HHmmss")) +".png";
-                String imagePath = imageGenerator.generateImage(password, filename);
-
-                if (imagePath == null) {
-                    Alert alert = new Alert(Alert.AlertType.ERROR, "Could not generate image", ButtonType.OK);
-                    alert.setTitle("Error");
-                    alert.setHeaderText("Image Generation Failed");
-                    alert.showAndWait();
-                    imagePath = "None";
-                }
+                String date = LocalDateTime.now().format(Cli.DATE_FORMAT);
+                // generate image in the background, the entry is shown and saved right away
+                String filename = ImageGenerator.newImageFilename(loggedInUser, website);
+                String imagePath = imageGenerator.getImagePath(filename);
 
-                PasswordEntry entry = new PasswordEntry(website, password, date, imagePath);
+                PasswordEntry entry = new PasswordEntry(new CredentialRecord(loggedInUser, website, password, date, imagePath));
+                entry.showPlaceholder();
                 entries.add(entry);
-                tableView.getItems().add(entry);
-                saveEntry(entry);
+                try {
+                    if (!saveEntry(entry)) {
+                        entries.remove(entry);
+                        showError("Entry Not Added", "This entry already exists.");
+                        return;
+                    }
+                } catch (IOException e) {
+                    entries.remove(entry);
+                    showError("Entry Not Added", "The entry could not be saved.");
+                    return;
+                }
                 websiteField.clear();
                 passwordField.clear();
+
+                imageJobQueue.submit(ImageJobQueue.Priority.INTERACTIVE, entry.getRecord(), filename).whenCompleteAsync((generatedPath, error) -> {
+                    if (generatedPath != null) {
+                        entry.setImagePath(generatedPath);
+                    }
+                    // also drops the placeholder if the generation was cancelled
+                    entry.showImage();
+                    if (generatedPath == null && error == null) {
+                        showError("Image Generation Failed", "Could not generate image");
+                    }
+                }, Platform::runLater);
             }
         });
 
@@ -231,19 +406,50 @@ public class Main extends Application {
             PasswordEntry selectedEntry = tableView.getSelectionModel().getSelectedItem();
             if (selectedEntry != null) {
                 entries.remove(selectedEntry);
-                tableView.getItems().remove(selectedEntry);
                 deleteEntry(selectedEntry);
             }
         });
 
+        Label regenerationLabel = new Label();
+        Button regenerateButton = new Button("Regenerate missing images");
+        MissingImageRegenerator regenerator = new MissingImageRegenerator(credentialStore, imageGenerator);
+        regenerateButton.setOnAction(_ -> {
+            String user = loggedInUser;
+            ImageJobQueue queue = imageJobQueue;
+            regenerateButton.setDisable(true);
+            regenerationLabel.setText("Queueing missing images...");
+            // every job is saved before it is queued, which takes too long for the FX thread
+            CompletableFuture.supplyAsync(() -> regenerator.enqueue(user, queue))
+                    .whenCompleteAsync((queued, error) -> {
+                        // the user may have logged out in the meantime
+                        if (!user.equals(loggedInUser)) {
+                            return;
+                        }
+                        if (error != null || queued.isEmpty()) {
+                            regenerateButton.setDisable(false);
+                            regenerationLabel.setText(error != null ? "Error when queueing the missing images." : "No missing images.");
+                            return;
+                        }
+                        trackRegeneration(user, queued, regenerateButton, regenerationLabel);
+                    }, Platform::runLater);
+        });
+        HBox regenerationLayout = new HBox(10);
+        regenerationLayout.getChildren().addAll(regenerateButton, regenerationLabel);
+
         Button logoutButton = new Button("Log out");
         logoutButton.setOnAction(_ -> {
+            generationStatusUpdater.stop();
+            // open jobs stay in the job log and are resumed at the next login
+            imageJobQueue.stop();
+            imageJobQueue = null;
+            imageGenerator.shutdown();
+            imageGenerator = null;
             loggedInUser = null;
             entries.clear();
             showLoginScreen(stage);
         });
 
-        mainLayout.getChildren().addAll(addEntryLayout, tableView, deleteButton, logoutButton);
+        mainLayout.getChildren().addAll(addEntryLayout, generationLayout, searchField, tableView, deleteButton, regenerationLayout, logoutButton);
 
         Scene mainScene = new Scene(mainLayout, 600, 400);
         stage.setScene(mainScene);
@@ -251,61 +457,141 @@ public class Main extends Application {
         stage.show();
     }
 
-    private void loadEntries() {
-        entries.clear();
-        try (BufferedReader reader = new BufferedReader(new FileReader(PASSWORDS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 5 && parts[0].equals(loggedInUser)) {
-                    // website, password, date, image
-                    entries.add(new PasswordEntry(parts[1], parts[2], parts[3], parts[4]));
+    // points the rows to the images of the queued jobs and shows the progress until all jobs finished
+    private void trackRegeneration(String user, List<MissingImageRegenerator.QueuedImage> queued,
+                                   Button regenerateButton, Label regenerationLabel) {
+        int total = queued.size();
+        int[] completed = {0};
+        int[] regenerated = {0};
+        regenerationLabel.setText("Regenerating images: 0/" + total);
+        for (MissingImageRegenerator.QueuedImage job : queued) {
+            // the store already points the entry to the new image path, the row has to hold the same record
+            // so that editing and deleting it finds the entry
+            PasswordEntry entry = null;
+            for (PasswordEntry candidate : entries) {
+                if (candidate.getRecord().equals(job.previous())) {
+                    entry = candidate;
+                    break;
                 }
             }
-        } catch (IOException e) {
-            System.out.println("Error loading the entries.");
+            if (entry != null) {
+                entry.setImagePath(job.imagePath());
+                entry.showPlaceholder();
+            }
+            PasswordEntry row = entry;
+            job.result().whenCompleteAsync((imagePath, error) -> {
+                completed[0]++;
+                if (error == null && imagePath != null) {
+                    regenerated[0]++;
+                }
+                if (row != null) {
+                    if (error == null && imagePath != null) {
+                        row.setImagePath(imagePath);
+                    }
+                    row.showImage();
+                }
+                if (!user.equals(loggedInUser)) {
+                    return;
+                }
+                if (completed[0] < total) {
+                    regenerationLabel.setText("Regenerating images: " + completed[0] + "/" + total);
+                } else {
+                    regenerateButton.setDisable(false);
+                    regenerationLabel.setText("Regenerated " + regenerated[0] + " images.");
+                }
+            }, Platform::runLater);
+        }
+    }
+
+    // updates the row of the entry of the job, the new image path is already saved by the job
+    private void showGeneratedImage(ImageGenerator generator, ImageJobQueue.Job job, String imagePath) {
+        if (!job.username().equals(loggedInUser)) {
+            return;
+        }
+        String outputPath = generator.getImagePath(job.outputFilename());
+        for (PasswordEntry entry : entries) {
+            if (outputPath.equals(entry.getImagePath())) {
+                entry.setImagePath(imagePath);
+                return;
+            }
+        }
+    }
+
+    private void loadEntries() {
+        long start = Metrics.startTimer();
+        List<PasswordEntry> loadedEntries = new ArrayList<>();
+        for (CredentialRecord record : credentialStore.entriesFor(loggedInUser)) {
+            loadedEntries.add(new PasswordEntry(record));
         }
+        entries.setAll(loadedEntries);
+        LOAD_ENTRIES_TIMER.stop(start);
+    }
+
+    // returns false if the entry already exists
+    private boolean saveEntry(PasswordEntry entry) throws IOException {
+        return credentialStore.add(entry.getRecord());
     }
 
-    private void saveEntry(PasswordEntry entry) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(PASSWORDS_FILE, true))) {
-                writer.write(loggedInUser + "," + entry.toCsvString());
-                writer.newLine();
+    // the row shows the old website again if the change could not be saved
+    private void updateWebsite(PasswordEntry entry, String website) {
+        CredentialRecord oldRecord = entry.getRecord();
+        entry.setWebsite(website);
+        try {
+            if (credentialStore.update(oldRecord, entry.getRecord())) {
+                return;
+            }
+            showError("Entry Not Changed", "The entry no longer exists.");
         } catch (IOException e) {
-            System.out.println("Error when saving the entries.");
+            showError("Entry Not Changed", "The change could not be saved.");
         }
+        entry.setWebsite(oldRecord.website());
     }
 
+    // the row was already removed, it is shown again if the deletion could not be saved
     private void deleteEntry(PasswordEntry entry) {
+        boolean deleted;
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(PASSWORDS_FILE));
-            String curLine = reader.readLine();
-            BufferedWriter writer = new BufferedWriter(new FileWriter(PASSWORDS_FILE));
-            while (curLine != null) {
-                String[] parts = curLine.split(",");
-                if (parts.length != 5 || !parts[0].equals(loggedInUser) || !parts[1].equals(entry.getWebsite()) || !parts[2].equals(entry.getPassword()) || !parts[3].equals(entry.getDate()) || !parts[4].equals(entry.getImagePath())) {
-                    writer.write(curLine);
-                    writer.newLine();
-                } else {
-                    deleteLocalFile(entry.getImagePath());
+            deleted = credentialStore.delete(entry.getRecord());
+        } catch (IOException e) {
+            entries.add(entry);
+            showError("Entry Not Deleted", "The deletion could not be saved.");
+            return;
+        }
+        if (deleted) {
+            if (ImageStore.isStored(entry.getImagePath())) {
+                // other entries may show the same image, so it stays cached; an image the store does not
+                // contain was never counted, e.g. one of an imported entry
+                if (imageStore.contains(entry.getImagePath())) {
+                    imageStore.release(entry.getImagePath());
                 }
-                curLine = reader.readLine();
+            } else {
+                imageCache.invalidate(entry.getImagePath());
+                deleteLocalFile(entry.getImagePath());
             }
-            reader.close();
-            writer.close();
-
-        } catch (IOException e) {
-            System.out.println("Error when saving the entries.");
         }
     }
 
+    private static void showError(String header, String message) {
+        Alert alert = new Alert(Alert.AlertType.ERROR, message, ButtonType.OK);
+        alert.setTitle("Error");
+        alert.setHeaderText(header);
+        alert.show();
+    }
+
     private boolean clearAllData() {
         try {
-            deleteLocalFile("accounts.txt");
-            deleteLocalFile("passwords.txt");
-            for(File file : Objects.requireNonNull(new File("images").listFiles())) {
-                if (!file.isDirectory())
-                    file.delete();
+            accountStore.clear();
+            credentialStore.clear();
+            imageCache.clear();
+            new GenerationCache(GenerationCache.DEFAULT_DIRECTORY).clear();
+            deleteLocalFile(VAULT_FILE);
+            deleteLocalFile(IMAGE_JOBS_FILE);
+            imageStore.clear();
+            // images saved directly to the image directory, e.g. before the image store was introduced; the
+            // files of the image store are left to it, other instances may still use them
+            File[] legacyImages = new File(IMAGES_DIRECTORY).listFiles((_, name) -> name.endsWith(".png") && !ImageStore.isStoreFile(name));
+            for (File file : Objects.requireNonNullElse(legacyImages, new File[0])) {
+                file.delete();
             }
             System.out.println("All images have been deleted.");
             return true;
@@ -327,19 +613,4 @@ public class Main extends Application {
             System.out.println("File " + fileName + " does not exist.");
         }
     }
-
-    private boolean isUsernameTaken(String username) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(ACCOUNTS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length > 0 && parts[0].equals(username)) {
-                    return true;
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Error while checking username.");
-        }
-        return false;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package main;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Finds the lines of a file that start with a given prefix by scanning a memory mapping of the file.
+ * Lines that do not match are skipped without being decoded, so only the matching lines are turned
+ * into strings. Files larger than the mapping window are mapped window by window.
+ */
+public class MappedLineScanner {
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private MappedLineScanner() {
+    }
+
+    /**
+     * Passes every line whose bytes at position offset equal the prefix to the consumer, without the line
+     * terminator. A last line without a line terminator is only passed if includeUnterminatedLine is set,
+     * e.g. not for logs whose last record may have been torn by a crash.
+     */
+    public static void forEachMatchingLine(Path file, int offset, byte[] prefix, boolean includeUnterminatedLine,
+                                           Consumer<String> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long windowSize = Math.min(WINDOW_BYTES, size - position);
+                boolean lastWindow = position + windowSize == size;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                int lineStart = scanWindow(buffer, offset, prefix, lastWindow && includeUnterminatedLine, consumer);
+                if (lastWindow) {
+                    break;
+                }
+                if (lineStart == 0) {
+                    throw new IOException("Line in " + file + " is longer than " + WINDOW_BYTES + " bytes.");
+                }
+                // the next window starts with the line that did not fit into this one
+                position += lineStart;
+            }
+        }
+    }
+
+    // returns the start of the first line that is not terminated within the buffer
+    private static int scanWindow(MappedByteBuffer buffer, int offset, byte[] prefix, boolean includeUnterminatedLine,
+                                  Consumer<String> consumer) {
+        int limit = buffer.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            boolean matches = startsWith(buffer, lineStart + offset, prefix);
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !includeUnterminatedLine) {
+                return lineStart;
+            }
+            if (matches && lineStart + offset + prefix.length <= lineEnd) {
+                int end = lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+                byte[] line = new byte[end - lineStart];
+                buffer.get(lineStart, line);
+                consumer.accept(new String(line, StandardCharsets.UTF_8));
+            }
+            lineStart = lineEnd + 1;
+        }
+        return limit;
+    }
+
+    private static boolean startsWith(MappedByteBuffer buffer, int start, byte[] prefix) {
+        if (start + prefix.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,288 @@
+package main;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters of the slow paths: inference calls, saving images, storage and login.
+ * <p>
+ * Metrics are only recorded when enabled with {@code -Dmetrics.enabled=true} or {@link #setEnabled(boolean)};
+ * otherwise {@link #startTimer()} returns 0 and recording returns right away. Enabled metrics are registered
+ * as MBeans under {@code main:type=Timer|Counter,name=<name>}, and with {@code -Dmetrics.logIntervalSeconds}
+ * they are also printed periodically.
+ * <p>
+ * Metric names are fixed strings or HTTP status codes. Never put passwords, passphrases, prompts,
+ * websites or usernames into a name.
+ */
+public final class Metrics {
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = false;
+    private static ScheduledExecutorService logExecutor = null;
+
+    static {
+        if (Boolean.getBoolean("metrics.enabled")) {
+            setEnabled(true);
+            long logInterval = Long.getLong("metrics.logIntervalSeconds", 0);
+            if (logInterval > 0) {
+                startLogging(logInterval);
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public interface TimerMBean {
+        long getCount();
+
+        double getTotalMillis();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double get50thPercentileMillis();
+
+        double get95thPercentileMillis();
+
+        double get99thPercentileMillis();
+    }
+
+    public interface CounterMBean {
+        long getCount();
+    }
+
+    /**
+     * Histogram of durations. The buckets grow by powers of two from 1 µs, so percentiles are exact to a
+     * factor of two, which is enough to tell a 50 ms save from a 5 s inference call.
+     */
+    public static final class Timer implements TimerMBean {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private Timer() {
+        }
+
+        /**
+         * Records the time since start, a value of {@link #startTimer()}. Does nothing if start is 0.
+         */
+        public void stop(long start) {
+            if (start != 0) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long nanos) {
+            if (!enabled) {
+                return;
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(1, nanos / 1000));
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getTotalMillis() {
+            return totalNanos.sum() / 1e6;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public double get50thPercentileMillis() {
+            return percentileMillis(0.5);
+        }
+
+        @Override
+        public double get95thPercentileMillis() {
+            return percentileMillis(0.95);
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return percentileMillis(0.99);
+        }
+
+        // upper bound of the bucket that contains the percentile
+        private double percentileMillis(double percentile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+
+    public static final class Counter implements CounterMBean {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            if (enabled) {
+                count.increment();
+            }
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops recording. Enabling registers all metrics as MBeans.
+     */
+    public static synchronized void setEnabled(boolean enabled) {
+        if (enabled && !Metrics.enabled) {
+            timers.forEach((name, timer) -> register("Timer", name, timer, TimerMBean.class));
+            counters.forEach((name, counter) -> register("Counter", name, counter, CounterMBean.class));
+        }
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Returns the timer with the given name, created on first use.
+     */
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, _ -> {
+            Timer timer = new Timer();
+            if (enabled) {
+                register("Timer", name, timer, TimerMBean.class);
+            }
+            return timer;
+        });
+    }
+
+    /**
+     * Returns the counter with the given name, created on first use.
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, _ -> {
+            Counter counter = new Counter();
+            if (enabled) {
+                register("Counter", name, counter, CounterMBean.class);
+            }
+            return counter;
+        });
+    }
+
+    /**
+     * Counts an event whose name is only known at runtime, e.g. an HTTP status code. Does not create the
+     * counter while metrics are disabled.
+     */
+    public static void count(String name) {
+        if (enabled) {
+            counter(name).increment();
+        }
+    }
+
+    /**
+     * Start time to pass to {@link Timer#stop(long)}, 0 while metrics are disabled.
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Prints all metrics every intervalSeconds on a background thread.
+     */
+    public static synchronized void startLogging(long intervalSeconds) {
+        if (logExecutor != null) {
+            return;
+        }
+        logExecutor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("metrics-log").daemon(true).factory());
+        logExecutor.scheduleAtFixedRate(() -> System.out.print(report()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stopLogging() {
+        if (logExecutor != null) {
+            logExecutor.shutdownNow();
+            logExecutor = null;
+        }
+    }
+
+    /**
+     * All metrics that were recorded at least once, one per line.
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        new TreeMap<>(timers).forEach((name, timer) -> {
+            if (timer.getCount() > 0) {
+                report.append(String.format("%s: count=%d mean=%.1fms p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms%n",
+                        name, timer.getCount(), timer.getMeanMillis(), timer.get50thPercentileMillis(),
+                        timer.get95thPercentileMillis(), timer.get99thPercentileMillis(), timer.getMaxMillis()));
+            }
+        });
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            if (counter.getCount() > 0) {
+                report.append(name).append(": ").append(counter.getCount()).append(System.lineSeparator());
+            }
+        });
+        return report.toString();
+    }
+
+    private static <T> void register(String type, String name, T metric, Class<T> mbeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("main:type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(metric, mbeanInterface), objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Could not register metric " + name + ":");
+            e.printStackTrace();
+        }
+    }
+}
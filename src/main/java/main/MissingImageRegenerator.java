@@ -0,0 +1,150 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Regenerates the images of all entries of a user whose image is missing, i.e. whose image path is
+ * "None" (failed generation), points to a file that no longer exists or to an image that the image store
+ * does not contain. Used by the password manager UI and from the command line.
+ */
+public class MissingImageRegenerator {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(2);
+
+    private final CredentialStore credentialStore;
+    private final ImageGenerator imageGenerator;
+
+    public MissingImageRegenerator(CredentialStore credentialStore, ImageGenerator imageGenerator) {
+        this.credentialStore = credentialStore;
+        this.imageGenerator = imageGenerator;
+    }
+
+    /**
+     * Whether the image of the record can not be shown. imageStore may be null if images are not stored in
+     * an image store, its images are then missing as well.
+     */
+    public static boolean isImageMissing(CredentialRecord record, ImageStore imageStore) {
+        String imagePath = record.imagePath();
+        // the index of the image store only refers to images that were stored completely
+        if (ImageStore.isStored(imagePath)) {
+            return imageStore == null || !imageStore.contains(imagePath);
+        }
+        return imagePath == null || imagePath.isBlank() || imagePath.equals("None") || !new File(imagePath).exists();
+    }
+
+    public List<CredentialRecord> findEntriesWithMissingImages(String username) {
+        List<CredentialRecord> missing = new ArrayList<>();
+        for (CredentialRecord record : credentialStore.entriesFor(username)) {
+            if (isImageMissing(record, imageGenerator.getImageStore())) {
+                missing.add(record);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Generates the missing images in one batch and stores the new image paths.
+     * The future completes with the number of entries that got a new image. Cancelling it cancels the batch.
+     */
+    public CompletableFuture<Integer> regenerate(String username, int maxConcurrency, BatchProgressListener listener) {
+        List<CredentialRecord> missing = findEntriesWithMissingImages(username);
+        List<ImageJob> jobs = new ArrayList<>();
+        Map<ImageJob, CredentialRecord> recordsByJob = new HashMap<>();
+        for (CredentialRecord record : missing) {
+            ImageJob job = new ImageJob(record.password(), ImageGenerator.newImageFilename(record.username(), record.website()));
+            jobs.add(job);
+            recordsByJob.put(job, record);
+        }
+
+        CompletableFuture<Map<ImageJob, String>> batch =
+                imageGenerator.generateImages(jobs, maxConcurrency, MAX_ATTEMPTS, INITIAL_BACKOFF, listener);
+        CompletableFuture<Integer> result = batch.thenApply(imagePaths -> {
+            int regenerated = 0;
+            for (Map.Entry<ImageJob, String> imagePath : imagePaths.entrySet()) {
+                if (imagePath.getValue() == null) {
+                    continue;
+                }
+                CredentialRecord record = recordsByJob.get(imagePath.getKey());
+                boolean updated = false;
+                try {
+                    // false if the entry was edited or deleted during the generation
+                    updated = credentialStore.update(record, record.withImagePath(imagePath.getValue()));
+                } catch (IOException e) {
+                    System.out.println("Error saving the new image of " + record.website() + ".");
+                }
+                if (updated) {
+                    regenerated++;
+                } else {
+                    imageGenerator.discardImage(imagePath.getValue());
+                }
+            }
+            return regenerated;
+        });
+        result.whenComplete((_, _) -> {
+            if (result.isCancelled()) {
+                batch.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * A queued backfill job. previous is the record of the entry before it was pointed to imagePath, the
+     * image path of the job's output file, so that rows which still show previous can be updated.
+     */
+    public record QueuedImage(CredentialRecord previous, String imagePath, CompletableFuture<String> result) {
+    }
+
+    /**
+     * Queues backfill jobs for the missing images instead of running them as one batch, so they are
+     * resumed after a restart and wait for images of new entries. Returns one {@link QueuedImage} per
+     * queued job. Every job waits for the job log and the credential store to be saved, so this should
+     * not be called on the FX thread.
+     * <p>
+     * The queue finds the entry of a job by its image path, so every entry first gets the path of its new
+     * image. An entry that already points to a missing image of the image directory keeps it, which
+     * coalesces it with a job that is still open for it. If an entry can not be pointed to its new image, no
+     * further jobs are queued.
+     */
+    public List<QueuedImage> enqueue(String username, ImageJobQueue queue) {
+        List<QueuedImage> queued = new ArrayList<>();
+        for (CredentialRecord record : findEntriesWithMissingImages(username)) {
+            CredentialRecord previous = record;
+            String filename = pendingImageFilename(record);
+            if (filename == null) {
+                filename = ImageGenerator.newImageFilename(record.username(), record.website());
+                CredentialRecord pointed = record.withImagePath(imageGenerator.getImagePath(filename));
+                try {
+                    if (!credentialStore.update(record, pointed)) {
+                        // changed or deleted in the meantime
+                        continue;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error saving the entries, not all missing images were queued.");
+                    break;
+                }
+                record = pointed;
+            }
+            queued.add(new QueuedImage(previous, record.imagePath(),
+                    queue.submit(ImageJobQueue.Priority.BACKFILL, record, filename)));
+        }
+        return queued;
+    }
+
+    // the file name of the missing image if the entry points into the image directory, null otherwise
+    private String pendingImageFilename(CredentialRecord record) {
+        String imagePath = record.imagePath();
+        if (imagePath == null || imagePath.isBlank() || imagePath.equals("None") || ImageStore.isStored(imagePath)) {
+            return null;
+        }
+        String filename = new File(imagePath).getName();
+        return imageGenerator.getImagePath(filename).equals(imagePath) ? filename : null;
+    }
+}
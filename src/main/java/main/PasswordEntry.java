@@ -4,84 +4,125 @@ import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 
-import java.io.File;
+import java.util.Locale;
 
+/**
+ * Row of the password table, an adapter from a {@link CredentialRecord} to JavaFX properties.
+ * <p>
+ * The properties are only created when a table cell binds to them, so rows that never become visible
+ * only hold their record. Storage and batch jobs work with the records and do not need JavaFX.
+ */
 public class PasswordEntry {
-    private final StringProperty website;
-    private final StringProperty password;
-    private final StringProperty date;
-    private final ObjectProperty<ImageView> imageView;
-    private final String imagePath;
-
-    public PasswordEntry(String website, String password, String date, String imagePath) {
-        this.website = new SimpleStringProperty(website);
-        this.password = new SimpleStringProperty(password);
-        this.date = new SimpleStringProperty(date);
-        this.imagePath = imagePath;
-        // Initialize ImageView if imagePath is valid
-        ImageView iv = null;
-        if (imagePath != null && !imagePath.trim().isEmpty()) {
-            File file = new File(imagePath);
-            if (file.exists()) {
-                iv = new ImageView(new Image(file.toURI().toString()));
-                // optional: set sizing constraints
-                iv.setFitWidth(200);
-                iv.setFitHeight(200);
-                iv.setPreserveRatio(true);
-            }
+    private CredentialRecord record;
+    // lower case website, precomputed so that filtering does not convert every row on every key stroke
+    private String searchKey;
+    // whether a placeholder is shown because the image is still being generated
+    private boolean generating = false;
+    private StringProperty website = null;
+    private StringProperty password = null;
+    private StringProperty date = null;
+    private ObjectProperty<String> displayedImagePath = null;
+
+    public PasswordEntry(CredentialRecord record) {
+        this.record = record;
+        this.searchKey = toSearchKey(record.website());
+    }
+
+    public CredentialRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * Shows a placeholder until the image has been generated.
+     */
+    public void showPlaceholder() {
+        generating = true;
+        if (displayedImagePath != null) {
+            displayedImagePath.set(null);
+        }
+    }
+
+    /**
+     * Shows the image at imagePath, e.g. after it has been generated in the background.
+     */
+    public void showImage() {
+        generating = false;
+        if (displayedImagePath != null) {
+            displayedImagePath.set(record.imagePath());
         }
-        this.imageView = new SimpleObjectProperty<>(iv);
     }
 
     public StringProperty websiteProperty() {
+        if (website == null) {
+            website = new SimpleStringProperty(record.website());
+        }
         return website;
     }
 
     public String getWebsite() {
-        return website.get();
+        return record.website();
     }
 
     public void setWebsite(String website) {
-        this.website.set(website);
+        record = record.withWebsite(website);
+        searchKey = toSearchKey(website);
+        if (this.website != null) {
+            this.website.set(website);
+        }
+    }
+
+    public String getSearchKey() {
+        return searchKey;
+    }
+
+    private static String toSearchKey(String website) {
+        return website == null ? "" : website.toLowerCase(Locale.ROOT);
     }
 
     public StringProperty passwordProperty() {
+        if (password == null) {
+            password = new SimpleStringProperty(record.password());
+        }
         return password;
     }
 
     public String getPassword() {
-        return password.get();
+        return record.password();
     }
 
     public StringProperty dateProperty() {
+        if (date == null) {
+            date = new SimpleStringProperty(record.date());
+        }
         return date;
     }
 
     public String getDate() {
-        return date.get();
-    }
-
-    public ImageView getImageView() {
-        return imageView.get();
+        return record.date();
     }
 
-    public void setImageView(ImageView iv) {
-        imageView.set(iv);
-    }
-
-    public ObjectProperty<ImageView> imageViewProperty() {
-        return imageView;
+    /**
+     * Image shown in the table, null while the image is still being generated.
+     */
+    public ObjectProperty<String> displayedImagePathProperty() {
+        if (displayedImagePath == null) {
+            displayedImagePath = new SimpleObjectProperty<>(generating ? null : record.imagePath());
+        }
+        return displayedImagePath;
     }
 
     public String getImagePath() {
-        return imagePath;
+        return record.imagePath();
     }
 
-
-    public String toCsvString() {
-        return getWebsite() + "," + getPassword() + "," + getDate() + "," + getImagePath();
+    /**
+     * Points the entry to its generated image. The image is shown unless the placeholder is shown.
+     */
+    public void setImagePath(String imagePath) {
+        record = record.withImagePath(imagePath);
+        if (!generating && displayedImagePath != null) {
+            displayedImagePath.set(imagePath);
+        }
     }
 }
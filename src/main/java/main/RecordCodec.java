@@ -0,0 +1,221 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Encodes and parses the comma separated lines of the account, snapshot and log files.
+ * <p>
+ * A field that contains a comma, a quote or a line break is written in quotes. Inside quotes a quote is
+ * doubled, and backslashes and line breaks are escaped as {@code \\}, {@code \n} and {@code \r}, so every
+ * record stays on one line. All other fields are written as they are. A field that merely starts with a
+ * quote but is not a complete quoted field is also read as it is.
+ * <p>
+ * Older versions split the lines at every comma and did not quote at all, so a field of theirs that
+ * happens to be quoted, e.g. the password {@code "secret"}, must not be decoded. Files that older versions
+ * wrote as well, the snapshot and the account file, therefore start with {@link #FORMAT_HEADER} once this
+ * version wrote them. Files without it are read with {@link #parseLegacy}, and are rewritten with the
+ * header before new records are added to them.
+ * <p>
+ * Parsing walks the line once without regular expressions and fills a caller supplied array. Quoted fields
+ * are decoded into one reused builder, so an instance is not thread safe; {@link #local()} returns one for
+ * the current thread.
+ */
+public final class RecordCodec {
+    public static final char SEPARATOR = ',';
+    /**
+     * First line of the files that older versions wrote as well, once they are written in this format.
+     */
+    public static final String FORMAT_HEADER = "#format=2";
+    private static final char QUOTE = '"';
+    private static final char ESCAPE = '\\';
+    private static final ThreadLocal<RecordCodec> LOCAL = ThreadLocal.withInitial(RecordCodec::new);
+
+    private final StringBuilder field = new StringBuilder();
+
+    public static RecordCodec local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Parses the fields of the line starting at index start into fields. Returns the number of fields, or
+     * -1 if the line has more fields than the array can hold.
+     */
+    public int parse(CharSequence line, int start, String[] fields) {
+        int length = line.length();
+        int index = start;
+        int count = 0;
+        while (true) {
+            if (count == fields.length) {
+                return -1;
+            }
+            int end = -1;
+            if (index < length && line.charAt(index) == QUOTE) {
+                field.setLength(0);
+                end = parseQuoted(line, index);
+                if (end >= 0) {
+                    fields[count++] = field.toString();
+                }
+            }
+            if (end < 0) {
+                end = index;
+                while (end < length && line.charAt(end) != SEPARATOR) {
+                    end++;
+                }
+                // plain fields are copied straight out of the line
+                fields[count++] = line.subSequence(index, end).toString();
+            }
+            if (end >= length) {
+                return count;
+            }
+            index = end + 1;
+        }
+    }
+
+    /**
+     * Parses a line of an older version, which splits at every comma and keeps quotes and backslashes as
+     * they are. Returns the number of fields, or -1 if the line has more fields than the array can hold.
+     */
+    public int parseLegacy(CharSequence line, int start, String[] fields) {
+        int length = line.length();
+        int index = start;
+        int count = 0;
+        while (true) {
+            if (count == fields.length) {
+                return -1;
+            }
+            int end = index;
+            while (end < length && line.charAt(end) != SEPARATOR) {
+                end++;
+            }
+            fields[count++] = line.subSequence(index, end).toString();
+            if (end >= length) {
+                return count;
+            }
+            index = end + 1;
+        }
+    }
+
+    /**
+     * Whether the file exists and starts with {@link #FORMAT_HEADER}.
+     */
+    public static boolean hasFormatHeader(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return FORMAT_HEADER.equals(reader.readLine());
+        }
+    }
+
+    /**
+     * Whether the file holds records of an older version, i.e. it is not empty but has no format header.
+     */
+    public static boolean isLegacyFile(Path file) throws IOException {
+        return Files.exists(file) && Files.size(file) > 0 && !hasFormatHeader(file);
+    }
+
+    // returns the index after the closing quote, or -1 if the field is not a complete quoted field
+    private int parseQuoted(CharSequence line, int start) {
+        int length = line.length();
+        int index = start + 1;
+        while (index < length) {
+            char c = line.charAt(index);
+            if (c == QUOTE) {
+                if (index + 1 < length && line.charAt(index + 1) == QUOTE) {
+                    field.append(QUOTE);
+                    index += 2;
+                    continue;
+                }
+                index++;
+                return index == length || line.charAt(index) == SEPARATOR ? index : -1;
+            }
+            if (c == ESCAPE && index + 1 < length) {
+                char escaped = line.charAt(index + 1);
+                switch (escaped) {
+                    case 'n' -> field.append('\n');
+                    case 'r' -> field.append('\r');
+                    case ESCAPE -> field.append(ESCAPE);
+                    default -> {
+                        return -1;
+                    }
+                }
+                index += 2;
+                continue;
+            }
+            field.append(c);
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the fields as one line without line terminator.
+     */
+    public static String join(String... fields) {
+        StringBuilder line = new StringBuilder();
+        try {
+            append(line, fields);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Writes the fields as one line without line terminator, e.g. directly to a file writer.
+     */
+    public static void append(Appendable out, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.append(SEPARATOR);
+            }
+            appendField(out, fields[i]);
+        }
+    }
+
+    /**
+     * Returns the field as it is written to a line.
+     */
+    public static String encodeField(String value) {
+        StringBuilder encoded = new StringBuilder(value.length() + 2);
+        try {
+            appendField(encoded, value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return encoded.toString();
+    }
+
+    private static void appendField(Appendable out, String value) throws IOException {
+        if (!needsQuotes(value)) {
+            out.append(value);
+            return;
+        }
+        out.append(QUOTE);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case QUOTE -> out.append(QUOTE).append(QUOTE);
+                case ESCAPE -> out.append(ESCAPE).append(ESCAPE);
+                case '\n' -> out.append(ESCAPE).append('n');
+                case '\r' -> out.append(ESCAPE).append('r');
+                default -> out.append(c);
+            }
+        }
+        out.append(QUOTE);
+    }
+
+    private static boolean needsQuotes(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR || c == QUOTE || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Exclusive lock shared with other processes that work on the same data directory, held as a
+ * {@link FileChannel} lock on one byte of a lock file. Locks on different positions of the same lock file
+ * are independent of each other.
+ * <p>
+ * Within this process it works like a binary semaphore: it is not reentrant, and it may be released by
+ * another thread than the one that acquired it, e.g. by a background task that finishes the work.
+ */
+public class SharedFileLock implements Closeable {
+    private final Path file;
+    private final long position;
+    private final Semaphore localLock = new Semaphore(1);
+    private FileChannel channel = null;
+    private FileLock fileLock = null;
+
+    public SharedFileLock(Path file, long position) {
+        this.file = file;
+        this.position = position;
+    }
+
+    /**
+     * Waits until neither this process nor another one holds the lock.
+     */
+    public void lock() throws IOException {
+        localLock.acquireUninterruptibly();
+        try {
+            fileLock = channel().lock(position, 1, false);
+        } catch (IOException | RuntimeException e) {
+            localLock.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the lock if it is free. Returns false if this process or another one holds it.
+     */
+    public boolean tryLock() throws IOException {
+        if (!localLock.tryAcquire()) {
+            return false;
+        }
+        try {
+            fileLock = channel().tryLock(position, 1, false);
+        } catch (IOException | RuntimeException e) {
+            localLock.release();
+            throw e;
+        }
+        if (fileLock == null) {
+            localLock.release();
+            return false;
+        }
+        return true;
+    }
+
+    public void unlock() {
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            System.out.println("Error releasing the lock on " + file + ".");
+        } finally {
+            fileLock = null;
+            localLock.release();
+        }
+    }
+
+    // kept open, since closing any channel of the lock file may release all locks of the process on it
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
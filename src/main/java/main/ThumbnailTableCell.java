@@ -0,0 +1,148 @@
+package main;
+
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.scene.control.TableCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Table cell for the memory image column. The image is only loaded when the cell is rendered, i.e. when
+ * its row is visible, and it is decoded in the background at display size. Until then a faded
+ * placeholder is shown. Decoded images are shared through an {@link ImageCache}. Images of the
+ * {@link ImageStore} are shown from their stored thumbnail, so the full image is never read. The store is
+ * only checked and read on a loader thread, since it may have to wait for other instances.
+ */
+public class ThumbnailTableCell<S> extends TableCell<S, String> {
+    public static final int THUMBNAIL_SIZE = ImageStore.THUMBNAIL_SIZE;
+
+    // one thread, the image store serializes its reads anyway
+    private static final ExecutorService STORE_LOADER = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("thumbnail-loader").daemon(true).factory());
+
+    private final ImageCache imageCache;
+    private final ImageStore imageStore;
+    private final Image placeholderImage;
+    private final ImageView imageView = new ImageView();
+    private Image loadingImage = null;
+    private ChangeListener<Number> loadingListener = null;
+
+    public ThumbnailTableCell(ImageCache imageCache, ImageStore imageStore, Image placeholderImage) {
+        this.imageCache = imageCache;
+        this.imageStore = imageStore;
+        this.placeholderImage = placeholderImage;
+        imageView.setFitWidth(THUMBNAIL_SIZE);
+        imageView.setFitHeight(THUMBNAIL_SIZE);
+        imageView.setPreserveRatio(true);
+    }
+
+    @Override
+    protected void updateItem(String imagePath, boolean empty) {
+        super.updateItem(imagePath, empty);
+        stopLoading();
+        setText(null);
+        if (empty) {
+            setGraphic(null);
+        } else if (imagePath == null) {
+            // image is still being generated
+            showPlaceholder();
+        } else if (ImageStore.isStored(imagePath)) {
+            Image image = imageCache.getIfPresent(imagePath);
+            if (image != null) {
+                showImage(image);
+            } else {
+                showPlaceholder();
+                loadStoredThumbnail(imagePath);
+            }
+        } else {
+            // a missing file ends in an image with an error, which is not shown
+            Image image = imageCache.get(imagePath, ThumbnailTableCell::loadThumbnail);
+            if (image.getProgress() >= 1.0) {
+                showImage(image);
+            } else {
+                showPlaceholder();
+                loadingImage = image;
+                loadingListener = (_, _, progress) -> {
+                    if (progress.doubleValue() >= 1.0) {
+                        stopLoading();
+                        showImage(image);
+                    }
+                };
+                image.progressProperty().addListener(loadingListener);
+            }
+        }
+    }
+
+    /**
+     * Starts decoding the image at display size in the background.
+     */
+    public static Image loadThumbnail(String imagePath) {
+        return new Image(new File(imagePath).toURI().toString(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true, true);
+    }
+
+    // shows the thumbnail once it is read, unless the cell shows another row by then
+    private void loadStoredThumbnail(String imagePath) {
+        CompletableFuture.supplyAsync(() -> readStoredThumbnail(imagePath), STORE_LOADER)
+                .thenAcceptAsync(image -> {
+                    if (image != null) {
+                        imageCache.put(imagePath, image);
+                    }
+                    if (isEmpty() || !imagePath.equals(getItem())) {
+                        return;
+                    }
+                    if (image != null) {
+                        showImage(image);
+                    } else {
+                        setGraphic(null);
+                    }
+                }, Platform::runLater);
+    }
+
+    // thumbnails are small, so they are decoded right away; null if the store does not contain the image
+    private Image readStoredThumbnail(String imagePath) {
+        if (!imageStore.contains(imagePath)) {
+            return null;
+        }
+        try {
+            byte[] thumbnail = imageStore.readThumbnail(imagePath);
+            if (thumbnail != null) {
+                return new Image(new ByteArrayInputStream(thumbnail));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading thumbnail of " + imagePath + ".");
+        }
+        return null;
+    }
+
+    private void stopLoading() {
+        if (loadingImage != null) {
+            loadingImage.progressProperty().removeListener(loadingListener);
+            loadingImage = null;
+            loadingListener = null;
+        }
+    }
+
+    private void showImage(Image image) {
+        if (image.isError()) {
+            imageCache.invalidate(getItem());
+            setGraphic(null);
+            return;
+        }
+        imageView.setImage(image);
+        imageView.setOpacity(1.0);
+        setGraphic(imageView);
+    }
+
+    private void showPlaceholder() {
+        imageView.setImage(placeholderImage);
+        imageView.setOpacity(0.3);
+        setGraphic(imageView);
+    }
+}
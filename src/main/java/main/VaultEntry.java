@@ -0,0 +1,57 @@
+package main;
+
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * Password entry read from a {@link VaultFile}. Website, date and image path are decrypted when the
+ * section of the user is read, the password only when it is revealed.
+ */
+public class VaultEntry {
+    private final String username;
+    private final String website;
+    private final String date;
+    private final String imagePath;
+    private final SecretKey key;
+    private final byte[] sealedPassword;
+    private final byte[] associatedData;
+
+    VaultEntry(String username, String website, String date, String imagePath,
+               SecretKey key, byte[] sealedPassword, byte[] associatedData) {
+        this.username = username;
+        this.website = website;
+        this.date = date;
+        this.imagePath = imagePath;
+        this.key = key;
+        this.sealedPassword = sealedPassword;
+        this.associatedData = associatedData;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getWebsite() {
+        return website;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getImagePath() {
+        return imagePath;
+    }
+
+    /**
+     * Decrypts the password of the entry.
+     */
+    public String revealPassword() throws GeneralSecurityException {
+        return new String(VaultFile.open(key, sealedPassword, associatedData), StandardCharsets.UTF_8);
+    }
+
+    public CredentialRecord toRecord() throws GeneralSecurityException {
+        return new CredentialRecord(username, website, revealPassword(), date, imagePath);
+    }
+}
@@ -0,0 +1,321 @@
+package main;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encrypted vault file holding the password entries of several users.
+ * <p>
+ * Layout:
+ * <pre>
+ * "PMVAULT1" | version | section count
+ * per user:  username | scrypt N, r, p | salt | offset | length | record count   (not encrypted)
+ * per user, at its offset, per record:
+ *            length | nonce + AES-GCM(website, date, imagePath)
+ *            length | nonce + AES-GCM(password)
+ * </pre>
+ * Each user's records are sealed with a key derived from that user's password, so a login only reads and
+ * decrypts its own section. The password of an entry is sealed separately and only decrypted when it is
+ * revealed. The associated data of every sealed part binds it to its user, position and field, so parts
+ * cannot be swapped between records.
+ */
+public class VaultFile {
+    private static final byte[] MAGIC = "PMVAULT1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final Path file;
+    private final Map<String, Section> sections = new LinkedHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private int costN = 1 << 14;
+    private int blockSize = 8;
+    private int parallelism = 1;
+
+    private record Section(String username, int costN, int blockSize, int parallelism, byte[] salt,
+                           long offset, long length, int recordCount) {
+    }
+
+    private VaultFile(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the unencrypted index of the vault. A file that does not exist yet is an empty vault.
+     */
+    public static VaultFile open(Path file) throws IOException {
+        VaultFile vault = new VaultFile(file);
+        vault.readIndex();
+        return vault;
+    }
+
+    /**
+     * Sets the scrypt cost used for sections written from now on.
+     */
+    public void setKdfParameters(int costN, int blockSize, int parallelism) {
+        this.costN = costN;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    public Set<String> users() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    public int recordCount(String username) {
+        Section section = sections.get(username);
+        return section == null ? 0 : section.recordCount();
+    }
+
+    /**
+     * Reads and decrypts the records of the user. The passwords of the entries stay sealed until
+     * {@link VaultEntry#revealPassword()} is called.
+     *
+     * @throws GeneralSecurityException if the password is wrong or the section was tampered with
+     */
+    public List<VaultEntry> readUser(String username, String password) throws IOException, GeneralSecurityException {
+        Section section = sections.get(username);
+        if (section == null) {
+            return Collections.emptyList();
+        }
+        // the index gives the position of the section, so only the pages of this user are read
+        SecretKey key = deriveKey(password, section);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (section.offset() + section.length() > channel.size()) {
+                throw new IOException("Vault file " + file + " is truncated.");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, section.offset(), section.length());
+            return decryptSection(username, key, buffer, section.recordCount());
+        }
+    }
+
+    /**
+     * Decrypts the metadata of the given number of records from the buffer.
+     */
+    static List<VaultEntry> decryptSection(String username, SecretKey key, ByteBuffer buffer, int recordCount) throws GeneralSecurityException {
+        List<VaultEntry> entries = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            byte[] sealedMetadata = new byte[buffer.getInt()];
+            buffer.get(sealedMetadata);
+            byte[] sealedPassword = new byte[buffer.getInt()];
+            buffer.get(sealedPassword);
+
+            byte[] metadata = open(key, sealedMetadata, associatedData(username, i, "metadata"));
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata))) {
+                entries.add(new VaultEntry(username, in.readUTF(), in.readUTF(), in.readUTF(),
+                        key, sealedPassword, associatedData(username, i, "password")));
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Invalid record in vault section of " + username, e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the section of the user with the given records, sealed with a key derived from the
+     * password. The sections of other users are copied without being decrypted. The file is written to
+     * a temp file first and then atomically renamed.
+     */
+    public void writeUser(String username, String password, List<CredentialRecord> records) throws IOException, GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Section newSection = new Section(username, costN, blockSize, parallelism, salt, 0, 0, records.size());
+        SecretKey key = deriveKey(password, newSection);
+
+        ByteArrayOutputStream sectionBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(sectionBytes);
+        for (int i = 0; i < records.size(); i++) {
+            CredentialRecord record = records.get(i);
+            ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+            try (DataOutputStream metadataOut = new DataOutputStream(metadata)) {
+                metadataOut.writeUTF(record.website());
+                metadataOut.writeUTF(record.date());
+                metadataOut.writeUTF(record.imagePath());
+            }
+            byte[] sealedMetadata = seal(key, metadata.toByteArray(), associatedData(username, i, "metadata"));
+            byte[] sealedPassword = seal(key, record.password().getBytes(StandardCharsets.UTF_8), associatedData(username, i, "password"));
+            out.writeInt(sealedMetadata.length);
+            out.write(sealedMetadata);
+            out.writeInt(sealedPassword.length);
+            out.write(sealedPassword);
+        }
+        out.flush();
+
+        Map<String, byte[]> contents = readRawSections(username);
+        contents.put(username, sectionBytes.toByteArray());
+        Map<String, Section> newSections = new LinkedHashMap<>(sections);
+        newSections.put(username, newSection);
+        writeFile(newSections, contents);
+    }
+
+    /**
+     * Removes the section of the user.
+     */
+    public void removeUser(String username) throws IOException {
+        if (!sections.containsKey(username)) {
+            return;
+        }
+        Map<String, byte[]> contents = readRawSections(username);
+        Map<String, Section> newSections = new LinkedHashMap<>(sections);
+        newSections.remove(username);
+        writeFile(newSections, contents);
+    }
+
+    // the sealed sections of all users except the given one, in file order
+    private Map<String, byte[]> readRawSections(String exceptUser) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        if (sections.isEmpty()) {
+            return contents;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (Section section : sections.values()) {
+                if (section.username().equals(exceptUser)) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(section.length()));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, section.offset() + buffer.position()) < 0) {
+                        throw new IOException("Vault file " + file + " is truncated.");
+                    }
+                }
+                contents.put(section.username(), buffer.array());
+            }
+        }
+        return contents;
+    }
+
+    private void writeFile(Map<String, Section> newSections, Map<String, byte[]> contents) throws IOException {
+        // the index has a fixed size per section, so its length does not depend on the offsets
+        int headerLength = writeIndex(newSections, contents, 0).length;
+        byte[] header = writeIndex(newSections, contents, headerLength);
+
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            for (String username : newSections.keySet()) {
+                writeFully(channel, contents.get(username));
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        readIndex();
+    }
+
+    private static byte[] writeIndex(Map<String, Section> newSections, Map<String, byte[]> contents, long firstOffset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(newSections.size());
+        long offset = firstOffset;
+        for (Section section : newSections.values()) {
+            int length = contents.get(section.username()).length;
+            out.writeUTF(section.username());
+            out.writeInt(section.costN());
+            out.writeInt(section.blockSize());
+            out.writeInt(section.parallelism());
+            out.write(section.salt());
+            out.writeLong(offset);
+            out.writeLong(length);
+            out.writeInt(section.recordCount());
+            offset += length;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void readIndex() throws IOException {
+        sections.clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a vault file.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported vault version " + version + ".");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String username = in.readUTF();
+                int n = in.readInt();
+                int r = in.readInt();
+                int p = in.readInt();
+                byte[] salt = new byte[SALT_LENGTH];
+                in.readFully(salt);
+                long offset = in.readLong();
+                long length = in.readLong();
+                int recordCount = in.readInt();
+                sections.put(username, new Section(username, n, r, p, salt, offset, length, recordCount));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static SecretKey deriveKey(String password, Section section) {
+        byte[] key = SCrypt.generate(password.getBytes(StandardCharsets.UTF_8), section.salt(),
+                section.costN(), section.blockSize(), section.parallelism(), KEY_LENGTH);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    static byte[] associatedData(String username, int index, String field) {
+        return (username + "\0" + index + "\0" + field).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] seal(SecretKey key, byte[] plaintext, byte[] associatedData) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(associatedData);
+        byte[] ciphertext = cipher.doFinal(plaintext);
+        byte[] sealed = new byte[NONCE_LENGTH + ciphertext.length];
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_LENGTH);
+        System.arraycopy(ciphertext, 0, sealed, NONCE_LENGTH, ciphertext.length);
+        return sealed;
+    }
+
+    static byte[] open(SecretKey key, byte[] sealed, byte[] associatedData) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_LENGTH));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH);
+    }
+}
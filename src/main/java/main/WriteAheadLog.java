@@ -0,0 +1,451 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of text records, one per line.
+ * <p>
+ * How appended records reach the disk depends on the {@link DurabilityMode}. In GROUP and ASYNC mode a
+ * background thread collects the records and writes and fsyncs them once per batch, so many appends
+ * share a single fsync.
+ * <p>
+ * If a batch cannot be written or fsynced, every append of that batch fails, and the file is cut back to
+ * where the batch started so that the next batch does not continue a torn line. If even that fails, the
+ * log is broken and all further appends fail.
+ * <p>
+ * Several processes can append to the same log if it is given a {@link SharedFileLock}: every batch is
+ * then written while holding that lock, and the file is reopened if another process moved it away in the
+ * meantime. {@link #readAppended(Consumer)} reads the records that the other processes appended.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public enum DurabilityMode {
+        /** Every append is written and fsynced before it returns. */
+        SYNC,
+        /** Appends are batched and fsynced together, an append returns once its batch is on disk. */
+        GROUP,
+        /** Appends are batched and fsynced together in the background, an append returns immediately. */
+        ASYNC
+    }
+
+    private final Path file;
+    private final DurabilityMode durabilityMode;
+    private final Object lock = new Object();
+    // guards the channel, so the flusher can write and fsync a batch while new records are appended
+    private final Object ioLock = new Object();
+    private FileChannel channel = null;
+    private Object channelFileKey = null;
+
+    // reading the records of other processes, guarded by ioLock
+    private final FileTail tail;
+    // positions of the batches this log wrote to the file of the channel since they were last read
+    private final TreeMap<Long, Long> ownWrites = new TreeMap<>();
+    private SharedFileLock sharedLock = null;
+
+    // batching state for GROUP and ASYNC mode, guarded by lock
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingRecords = 0;
+    private long appendedSequence = 0;
+    // highest sequence whose batch was written, successfully or not
+    private long durableSequence = 0;
+    // batches that could not be written, by their last sequence
+    private final TreeMap<Long, FailedBatch> failedBatches = new TreeMap<>();
+    private IOException brokenBy = null;
+    private boolean closed = false;
+    private Thread flusher = null;
+    private long groupCommitIntervalMillis = 0;
+    private int maxBatchRecords = 256;
+
+    private record FailedBatch(long firstSequence, IOException failure) {
+    }
+
+    public WriteAheadLog(Path file, DurabilityMode durabilityMode) {
+        this.file = file;
+        this.durabilityMode = durabilityMode;
+        this.tail = new FileTail(file);
+    }
+
+    /**
+     * Lock that all processes appending to this log file hold while writing.
+     */
+    public void setSharedLock(SharedFileLock sharedLock) {
+        this.sharedLock = sharedLock;
+    }
+
+    /**
+     * How long the flusher waits for further records before writing a batch. With the default of 0 a
+     * batch consists of the records that arrived while the previous batch was being fsynced.
+     */
+    public void setGroupCommitIntervalMillis(long groupCommitIntervalMillis) {
+        this.groupCommitIntervalMillis = groupCommitIntervalMillis;
+    }
+
+    public void setMaxBatchRecords(int maxBatchRecords) {
+        this.maxBatchRecords = maxBatchRecords;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    /**
+     * Passes every complete line of the log file to the consumer. A trailing line without a line break
+     * is the remainder of an interrupted write and is skipped.
+     */
+    public static void replay(Path file, Consumer<String> consumer) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        consumer.accept(line.toString());
+                        line.setLength(0);
+                    } else {
+                        line.append(buffer[i]);
+                    }
+                }
+            }
+            if (!line.isEmpty()) {
+                System.out.println("Skipping incomplete record at the end of " + file + ".");
+            }
+        }
+    }
+
+    /**
+     * Passes every complete line of the log file to the consumer and remembers how far it was read, so
+     * that {@link #readAppended(Consumer)} continues from there.
+     */
+    public void replay(Consumer<String> consumer) throws IOException {
+        synchronized (ioLock) {
+            tail.reset();
+            tail.read(consumer);
+        }
+    }
+
+    /**
+     * Passes the records that other processes appended since the last {@link #replay(Consumer)} or
+     * readAppended to the consumer. Records written by this log are skipped, they were applied when they
+     * were appended. Returns false without reading anything if the log file was replaced, deleted or
+     * truncated by another process in the meantime, the records then have to be reloaded completely.
+     */
+    public boolean readAppended(Consumer<String> consumer) throws IOException {
+        synchronized (ioLock) {
+            return readAppendedRecords(consumer);
+        }
+    }
+
+    /**
+     * Appends the record and returns once it is as durable as the durability mode promises.
+     */
+    public void append(String record) throws IOException {
+        awaitDurable(enqueue(record));
+    }
+
+    /**
+     * Appends the record without waiting for its batch to be written. Returns the sequence number
+     * to pass to {@link #awaitDurable(long)}, which allows callers to release their own locks before
+     * waiting so that concurrent appends can join the same batch.
+     */
+    public long enqueue(String record) throws IOException {
+        byte[] bytes = (record + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Log " + file + " is closed.");
+            }
+            if (brokenBy != null) {
+                throw new IOException("Log " + file + " is broken after a failed write.", brokenBy);
+            }
+            if (durabilityMode == DurabilityMode.SYNC) {
+                synchronized (ioLock) {
+                    writeBatch(bytes);
+                }
+                return durableSequence = ++appendedSequence;
+            }
+            startFlusher();
+            pending.write(bytes, 0, bytes.length);
+            pendingRecords++;
+            // wake the flusher for the first record of a batch and when the batch is full
+            if (pendingRecords == 1 || pendingRecords >= maxBatchRecords) {
+                lock.notifyAll();
+            }
+            return ++appendedSequence;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is on disk. Returns immediately in ASYNC mode.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (durabilityMode != DurabilityMode.GROUP) {
+            return;
+        }
+        synchronized (lock) {
+            waitForSequence(sequence);
+        }
+    }
+
+    /**
+     * Writes and fsyncs all pending records before returning. Fails if any of them could not be written.
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (durabilityMode == DurabilityMode.SYNC || appendedSequence == durableSequence) {
+                return;
+            }
+            long firstPending = durableSequence + 1;
+            lock.notifyAll();
+            waitForSequences(firstPending, appendedSequence);
+        }
+    }
+
+    /**
+     * Flushes the log and moves the file to the target. Following appends start a new log file.
+     */
+    public void rotateTo(Path target) throws IOException {
+        rotateTo(target, null);
+    }
+
+    /**
+     * Like {@link #rotateTo(Path)}, but first passes the records that other processes appended to the
+     * consumer, while holding the shared lock so that nothing can be appended before the file is moved.
+     * Fails if the log file was replaced by another process since it was last read.
+     */
+    public void rotateTo(Path target, Consumer<String> appendedRecords) throws IOException {
+        synchronized (lock) {
+            flush();
+            synchronized (ioLock) {
+                lockShared();
+                try {
+                    if (appendedRecords != null && !readAppendedRecords(appendedRecords)) {
+                        throw new IOException("Log " + file + " was replaced by another process.");
+                    }
+                    closeChannel();
+                    if (Files.exists(file)) {
+                        Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    tail.reset();
+                } finally {
+                    unlockShared();
+                }
+            }
+        }
+    }
+
+    /**
+     * Discards the log file. Records that are still pending are dropped.
+     */
+    public void delete() throws IOException {
+        synchronized (lock) {
+            pending.reset();
+            pendingRecords = 0;
+            durableSequence = appendedSequence;
+            lock.notifyAll();
+            synchronized (ioLock) {
+                lockShared();
+                try {
+                    closeChannel();
+                    Files.deleteIfExists(file);
+                    tail.reset();
+                } finally {
+                    unlockShared();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Thread flusherToJoin;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            lock.notifyAll();
+            flusherToJoin = flusher;
+        }
+        if (flusherToJoin != null) {
+            try {
+                flusherToJoin.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ioLock) {
+            closeChannel();
+        }
+    }
+
+    private void waitForSequence(long sequence) throws IOException {
+        waitForSequences(sequence, sequence);
+    }
+
+    // waits until the batches of the records from first to last were written, fails if one of them failed
+    private void waitForSequences(long first, long last) throws IOException {
+        while (durableSequence < last) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the log to be written.", e);
+            }
+        }
+        Map.Entry<Long, FailedBatch> failed = failedBatches.ceilingEntry(first);
+        if (failed != null && failed.getValue().firstSequence() <= last) {
+            throw new IOException("Record could not be written to the log " + file + ".", failed.getValue().failure());
+        }
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = Thread.ofPlatform().name("wal-flusher-" + file.getFileName()).daemon(true).start(this::runFlusher);
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            byte[] batch;
+            long sequence;
+            long firstSequence;
+            synchronized (lock) {
+                try {
+                    while (pendingRecords == 0 && !closed) {
+                        lock.wait();
+                    }
+                    if (pendingRecords == 0) {
+                        return;
+                    }
+                    // optionally give other appends the chance to join this batch
+                    if (groupCommitIntervalMillis > 0 && pendingRecords < maxBatchRecords) {
+                        lock.wait(groupCommitIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                sequence = appendedSequence;
+                firstSequence = appendedSequence - pendingRecords + 1;
+                pending.reset();
+                pendingRecords = 0;
+            }
+
+            IOException failure = null;
+            synchronized (ioLock) {
+                try {
+                    writeBatch(batch);
+                } catch (IOException e) {
+                    System.out.println("Error when writing the log " + file + ".");
+                    failure = e;
+                }
+            }
+
+            synchronized (lock) {
+                if (failure != null) {
+                    failedBatches.put(sequence, new FailedBatch(firstSequence, failure));
+                }
+                durableSequence = Math.max(durableSequence, sequence);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private boolean readAppendedRecords(Consumer<String> consumer) throws IOException {
+        Object currentKey = FileTail.fileKey(file);
+        if (currentKey != null && currentKey.equals(channelFileKey)) {
+            return tail.read(consumer, ownWrites);
+        }
+        return tail.read(consumer);
+    }
+
+    // writes and fsyncs the bytes, while holding the shared lock so that no other process appends behind a
+    // batch that is cut back after a failure
+    private void writeBatch(byte[] bytes) throws IOException {
+        if (brokenBy != null) {
+            throw new IOException("Log " + file + " is broken after a failed write.", brokenBy);
+        }
+        lockShared();
+        try {
+            // another process may have rotated or deleted the file since it was opened
+            if (sharedLock != null && channel != null && !Objects.equals(channelFileKey, FileTail.fileKey(file))) {
+                closeChannel();
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channelFileKey = FileTail.fileKey(file);
+            }
+            long start = channel.size();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                discardFrom(start, e);
+                throw e;
+            }
+            if (sharedLock != null) {
+                ownWrites.put(start, start + bytes.length);
+            }
+        } finally {
+            unlockShared();
+        }
+    }
+
+    // cuts the file back to the start of a failed batch, or marks the log as broken if that is not possible
+    private void discardFrom(long start, IOException failure) {
+        try {
+            channel.truncate(start);
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Could not remove the failed write from the log " + file + ", no further records are written.");
+            brokenBy = failure;
+            try {
+                closeChannel();
+            } catch (IOException closeFailure) {
+                // the log is broken anyway
+            }
+        }
+    }
+
+    private void lockShared() throws IOException {
+        if (sharedLock != null) {
+            sharedLock.lock();
+        }
+    }
+
+    private void unlockShared() {
+        if (sharedLock != null) {
+            sharedLock.unlock();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            channelFileKey = null;
+            ownWrites.clear();
+        }
+    }
+}
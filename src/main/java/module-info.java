@@ -3,8 +3,10 @@ module Project {
 
     requires javafx.fxml;
     requires java.desktop;
+    requires java.management;
     requires com.google.gson;
     requires okhttp3;
+    requires org.bouncycastle.provider;
 
     opens main;
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+    private static final Duration SLOW = Duration.ofSeconds(10);
+    private static final Duration LONG_OPEN = Duration.ofHours(1);
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, SLOW, LONG_OPEN);
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.recordFailure();
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        }
+        assertTrue(breaker.tryAcquire());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(2, SLOW, LONG_OPEN);
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        breaker.tryAcquire();
+        breaker.recordSuccess(0);
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void slowCallsCountAsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofMillis(100), LONG_OPEN);
+        breaker.tryAcquire();
+        breaker.recordSuccess(Duration.ofSeconds(1).toNanos());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void letsOneProbeThroughAfterTheOpenDuration() {
+        CircuitBreaker breaker = new CircuitBreaker(1, SLOW, Duration.ZERO);
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // only a single probe at a time
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    void successfulProbeClosesTheCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker(1, SLOW, Duration.ZERO);
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        breaker.tryAcquire();
+        breaker.recordSuccess(0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void failedProbeOpensTheCircuitAgain() {
+        CircuitBreaker breaker = new CircuitBreaker(5, SLOW, Duration.ZERO);
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire();
+            breaker.recordFailure();
+        }
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void releasedProbeLetsTheNextOneThrough() {
+        CircuitBreaker breaker = new CircuitBreaker(1, SLOW, Duration.ZERO);
+        breaker.tryAcquire();
+        breaker.recordFailure();
+        assertTrue(breaker.tryAcquire());
+        breaker.release();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void rejectsThresholdBelowOne() {
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(0, SLOW, LONG_OPEN));
+    }
+}
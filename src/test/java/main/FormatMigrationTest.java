@@ -0,0 +1,80 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Files of older versions, which split their lines at every comma, keep their fields when they are read
+ * and rewritten.
+ */
+class FormatMigrationTest {
+    private static final String QUOTED_PASSWORD = "\"secret\"";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void legacySnapshotKeepsQuotedPasswordsAfterCompaction() throws IOException {
+        Path snapshot = directory.resolve("passwords.txt");
+        Files.writeString(snapshot, "alice,example.com," + QUOTED_PASSWORD + ",01.02.2024 10:00,None\n", StandardCharsets.UTF_8);
+        String log = directory.resolve("passwords.log").toString();
+
+        CredentialStore store = new CredentialStore(snapshot.toString(), log);
+        store.load();
+        assertEquals(QUOTED_PASSWORD, store.entriesFor("alice").getFirst().password());
+        assertEquals(QUOTED_PASSWORD, CredentialStore.readUser(snapshot.toString(), log, "alice").getFirst().password());
+        store.add(new CredentialRecord("alice", "other.com", "plain", "01.02.2024 11:00", "None"));
+        store.close();
+
+        assertTrue(RecordCodec.hasFormatHeader(snapshot));
+        CredentialStore reloaded = new CredentialStore(snapshot.toString(), log);
+        reloaded.load();
+        List<CredentialRecord> records = reloaded.findByWebsite("alice", "example.com");
+        assertEquals(QUOTED_PASSWORD, records.getFirst().password());
+        assertEquals(2, reloaded.size());
+        reloaded.close();
+    }
+
+    @Test
+    void legacyAccountFileIsRewrittenBeforeAnAccountIsAdded() throws IOException {
+        Path accounts = directory.resolve("accounts.txt");
+        Files.writeString(accounts, "bob," + QUOTED_PASSWORD + "\n", StandardCharsets.UTF_8);
+
+        AccountStore store = new AccountStore(accounts.toString());
+        store.setKdfParameters(16, 1, 1);
+        store.load();
+        assertTrue(store.verify("bob", QUOTED_PASSWORD));
+        assertTrue(store.createAccount("carol", "pw"));
+
+        assertTrue(RecordCodec.hasFormatHeader(accounts));
+        AccountStore reloaded = new AccountStore(accounts.toString());
+        reloaded.load();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.verify("bob", QUOTED_PASSWORD));
+        assertFalse(reloaded.verify("bob", "secret"));
+        assertTrue(reloaded.verify("carol", "pw"));
+    }
+
+    @Test
+    void newAccountFileStartsWithTheHeader() throws IOException {
+        Path accounts = directory.resolve("accounts.txt");
+        AccountStore store = new AccountStore(accounts.toString());
+        store.setKdfParameters(16, 1, 1);
+        assertTrue(store.createAccount("dave", "a,\"b\""));
+
+        assertTrue(RecordCodec.hasFormatHeader(accounts));
+        AccountStore reloaded = new AccountStore(accounts.toString());
+        reloaded.load();
+        assertTrue(reloaded.verify("dave", "a,\"b\""));
+    }
+}
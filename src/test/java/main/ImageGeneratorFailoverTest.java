@@ -0,0 +1,164 @@
+package main;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageGeneratorFailoverTest {
+    private static final String PROMPT_RESPONSE = "{\"choices\":[{\"message\":{\"content\":\"A red house on a green hill.\"}}]}";
+
+    @TempDir
+    Path directory;
+
+    private final MockWebServer firstLlm = new MockWebServer();
+    private final MockWebServer secondLlm = new MockWebServer();
+    private final MockWebServer imageServer = new MockWebServer();
+    private ImageGenerator generator;
+    private String firstLlmUrl;
+    private String imageUrl;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        firstLlm.start();
+        secondLlm.start();
+        imageServer.start();
+        firstLlmUrl = firstLlm.url("/v1/chat/completions").toString();
+        imageUrl = imageServer.url("/v1/images/generations").toString();
+
+        generator = new ImageGenerator();
+        generator.setGenerationCache(null);
+        generator.setDefaultImagePath(directory.resolve("images").toString());
+        generator.setImageResponseFormat("b64_json");
+        generator.setLlmEndpoints(List.of(firstLlmUrl, secondLlm.url("/v1/chat/completions").toString()));
+        generator.setImageEndpoint(imageUrl);
+        generator.setRetryPolicy(2, Duration.ofMillis(1));
+        generator.setLlmCircuitBreaker(1, Duration.ofSeconds(30), Duration.ofHours(1));
+        generator.setImageCircuitBreaker(1, Duration.ofSeconds(30), Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        generator.shutdown();
+        firstLlm.shutdown();
+        secondLlm.shutdown();
+        imageServer.shutdown();
+    }
+
+    @Test
+    void failsOverToTheNextEndpointOnAServerError() throws IOException {
+        firstLlm.enqueue(new MockResponse().setResponseCode(500));
+        secondLlm.enqueue(promptResponse());
+        imageServer.enqueue(imageResponse());
+
+        assertNotNull(generator.generateImage("secret", "a.png", false));
+        // a server error is not retried on the same endpoint
+        assertEquals(1, firstLlm.getRequestCount());
+        assertEquals(1, secondLlm.getRequestCount());
+        assertEquals(CircuitBreaker.State.OPEN, generator.getLlmCircuitState(firstLlmUrl));
+    }
+
+    @Test
+    void retriesAnOverloadedEndpoint() throws IOException {
+        firstLlm.enqueue(new MockResponse().setResponseCode(503));
+        firstLlm.enqueue(promptResponse());
+        imageServer.enqueue(imageResponse());
+        generator.setLlmCircuitBreaker(5, Duration.ofSeconds(30), Duration.ofHours(1));
+
+        assertNotNull(generator.generateImage("secret", "a.png", false));
+        assertEquals(2, firstLlm.getRequestCount());
+        assertEquals(0, secondLlm.getRequestCount());
+        assertEquals(CircuitBreaker.State.CLOSED, generator.getLlmCircuitState(firstLlmUrl));
+    }
+
+    @Test
+    void skipsAnEndpointWhoseCircuitIsOpen() throws IOException {
+        firstLlm.enqueue(new MockResponse().setResponseCode(500));
+        secondLlm.enqueue(promptResponse());
+        secondLlm.enqueue(promptResponse());
+        imageServer.enqueue(imageResponse());
+        imageServer.enqueue(imageResponse());
+
+        assertNotNull(generator.generateImage("secret", "a.png", false));
+        assertNotNull(generator.generateImage("secret", "b.png", false));
+        assertEquals(1, firstLlm.getRequestCount());
+        assertEquals(2, secondLlm.getRequestCount());
+    }
+
+    @Test
+    void brokenConnectionCountsAgainstTheEndpoint() {
+        firstLlm.enqueue(promptResponse());
+        imageServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+
+        assertNull(generator.generateImage("secret", "a.png", false));
+        assertEquals(CircuitBreaker.State.OPEN, generator.getImageCircuitState(imageUrl));
+    }
+
+    @Test
+    void errorResponseCountsAgainstTheEndpoint() {
+        firstLlm.enqueue(promptResponse());
+        imageServer.enqueue(new MockResponse().setResponseCode(500));
+
+        assertNull(generator.generateImage("secret", "a.png", false));
+        assertEquals(CircuitBreaker.State.OPEN, generator.getImageCircuitState(imageUrl));
+    }
+
+    @Test
+    void imageThatCannotBeSavedDoesNotCountAgainstTheEndpoint() throws IOException {
+        firstLlm.enqueue(promptResponse());
+        firstLlm.enqueue(promptResponse());
+        imageServer.enqueue(imageResponse());
+        imageServer.enqueue(imageResponse());
+        // the image directory cannot be created below a regular file
+        Path file = Files.createFile(directory.resolve("file"));
+        generator.setDefaultImagePath(file.resolve("images").toString());
+
+        assertNull(generator.generateImage("secret", "a.png", false));
+        assertEquals(CircuitBreaker.State.CLOSED, generator.getImageCircuitState(imageUrl));
+
+        generator.setDefaultImagePath(directory.resolve("images").toString());
+        assertNotNull(generator.generateImage("secret", "a.png", false));
+        assertEquals(2, imageServer.getRequestCount());
+    }
+
+    @Test
+    void blankStreamedPromptFallsBackToThePassphrase() throws Exception {
+        generator.setLlmStreaming(true);
+        firstLlm.enqueue(new MockResponse().setHeader("Content-Type", "text/event-stream")
+                .setBody("data: {\"choices\":[{\"delta\":{\"content\":\"  \"}}]}\n\ndata: [DONE]\n\n"));
+        imageServer.enqueue(imageResponse());
+
+        assertNotNull(generator.generateImage("secret", "a.png", false));
+        assertTrue(imageServer.takeRequest().getBody().readUtf8().contains("\"prompt\":\"secret|"));
+    }
+
+    private static MockResponse promptResponse() {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(PROMPT_RESPONSE);
+    }
+
+    private static MockResponse imageResponse() throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "png", png);
+        String base64 = Base64.getEncoder().encodeToString(png.toByteArray());
+        return new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody("{\"data\":[{\"b64_json\":\"" + base64 + "\"}]}");
+    }
+}
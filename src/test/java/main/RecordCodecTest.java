@@ -0,0 +1,115 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class RecordCodecTest {
+    // characters that need quoting or escaping, mixed with plain ones
+    private static final String ALPHABET = "ab ,\"\\\n\rnrä€";
+
+    private final RecordCodec codec = new RecordCodec();
+
+    @Test
+    void plainFieldsAreWrittenAsTheyAre() {
+        assertEquals("alice,example.com,secret", RecordCodec.join("alice", "example.com", "secret"));
+    }
+
+    @Test
+    void specialCharactersAreQuotedAndEscaped() {
+        assertEquals("\"a,b\",\"say \"\"hi\"\"\",\"x\\ny\\\\\"", RecordCodec.join("a,b", "say \"hi\"", "x\ny\\"));
+    }
+
+    @Test
+    void encodedRecordsStayOnOneLine() {
+        String line = RecordCodec.join("line\nbreak", "carriage\rreturn");
+        assertFalse(line.contains("\n") || line.contains("\r"));
+    }
+
+    @Test
+    void parsesLinesOfOlderVersions() {
+        String[] fields = new String[4];
+        assertEquals(4, codec.parse("alice,example.com,pa\\ss,None", 0, fields));
+        assertArrayEquals(new String[]{"alice", "example.com", "pa\\ss", "None"}, fields);
+    }
+
+    @Test
+    void legacyLinesKeepQuotedFieldsAsTheyAre() {
+        String[] fields = new String[5];
+        assertEquals(5, codec.parseLegacy("alice,example.com,\"secret\",\"a\"\"b\\n\",None", 0, fields));
+        assertArrayEquals(new String[]{"alice", "example.com", "\"secret\"", "\"a\"\"b\\n\"", "None"}, fields);
+    }
+
+    @Test
+    void incompleteQuotedFieldIsReadAsItIs() {
+        String[] fields = new String[3];
+        assertEquals(2, codec.parse("\"unterminated,next", 0, fields));
+        assertEquals("\"unterminated", fields[0]);
+        assertEquals("next", fields[1]);
+    }
+
+    @Test
+    void parsesFromStartIndex() {
+        String[] fields = new String[2];
+        assertEquals(2, codec.parse("+,\"a,b\",c", 2, fields));
+        assertEquals("a,b", fields[0]);
+        assertEquals("c", fields[1]);
+    }
+
+    @Test
+    void emptyFieldsArePreserved() {
+        String[] fields = new String[3];
+        assertEquals(3, codec.parse(",,", 0, fields));
+        assertArrayEquals(new String[]{"", "", ""}, fields);
+    }
+
+    @Test
+    void tooManyFieldsReturnsMinusOne() {
+        assertEquals(-1, codec.parse("a,b,c", 0, new String[2]));
+    }
+
+    @Test
+    void randomFieldsSurviveARoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String[] fields = new String[1 + random.nextInt(6)];
+            for (int j = 0; j < fields.length; j++) {
+                fields[j] = randomField(random);
+            }
+            String line = RecordCodec.join(fields);
+            String[] parsed = new String[fields.length];
+            assertEquals(fields.length, codec.parse(line, 0, parsed), line);
+            assertArrayEquals(fields, parsed, line);
+        }
+    }
+
+    @Test
+    void joinConcatenatesEncodedFields() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1_000; i++) {
+            String first = randomField(random);
+            String second = randomField(random);
+            assertEquals(RecordCodec.encodeField(first) + RecordCodec.SEPARATOR + RecordCodec.encodeField(second),
+                    RecordCodec.join(first, second));
+        }
+    }
+
+    @Test
+    void credentialRecordSurvivesARoundTrip() {
+        CredentialRecord record = new CredentialRecord("bob", "shop, \"the\" one", "p\\a\ns,s", "01.02.2024 10:00", "pack:abc");
+        assertEquals(record, CredentialRecord.fromCsvLine(record.toCsvLine()));
+    }
+
+    private static String randomField(Random random) {
+        StringBuilder field = new StringBuilder();
+        int length = random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            field.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return field.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package main;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysAppendedRecordsInEveryMode() throws IOException {
+        for (WriteAheadLog.DurabilityMode mode : WriteAheadLog.DurabilityMode.values()) {
+            Path file = directory.resolve(mode + ".log");
+            try (WriteAheadLog log = new WriteAheadLog(file, mode)) {
+                log.append("first");
+                log.append("second, with a comma");
+            }
+            assertEquals(List.of("first", "second, with a comma"), replay(file), mode.name());
+        }
+    }
+
+    @Test
+    void replaySkipsAnIncompleteLastRecord() throws IOException {
+        Path file = directory.resolve("torn.log");
+        Files.writeString(file, "complete\nalso complete\ntorn", StandardCharsets.UTF_8);
+        assertEquals(List.of("complete", "also complete"), replay(file));
+    }
+
+    @Test
+    void replayOfAMissingFileIsEmpty() throws IOException {
+        assertEquals(List.of(), replay(directory.resolve("missing.log")));
+    }
+
+    @Test
+    void concurrentAppendsAreAllDurable() throws Exception {
+        Path file = directory.resolve("group.log");
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.GROUP)) {
+            log.setGroupCommitIntervalMillis(1);
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new CopyOnWriteArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                threads.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            log.append(thread + "-" + i);
+                        }
+                    } catch (IOException e) {
+                        failures.add(e);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(List.of(), failures);
+            // every append returned after its batch was written
+            assertEquals(800, replay(file).size());
+        }
+    }
+
+    @Test
+    void everyRecordOfAFailedBatchFails() throws IOException {
+        // the log file cannot be created while its directory is missing
+        Path file = directory.resolve("missing").resolve("batch.log");
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.GROUP)) {
+            log.setGroupCommitIntervalMillis(200);
+            long first = log.enqueue("a");
+            long second = log.enqueue("b");
+            long third = log.enqueue("c");
+            assertThrows(IOException.class, () -> log.awaitDurable(first));
+            assertThrows(IOException.class, () -> log.awaitDurable(second));
+            assertThrows(IOException.class, () -> log.awaitDurable(third));
+
+            Files.createDirectories(file.getParent());
+            log.append("d");
+        }
+        assertEquals(List.of("d"), replay(file));
+    }
+
+    @Test
+    void flushFailsIfAPendingRecordCouldNotBeWritten() throws IOException {
+        Path file = directory.resolve("missing").resolve("flush.log");
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.ASYNC)) {
+            log.setGroupCommitIntervalMillis(200);
+            log.enqueue("a");
+            assertThrows(IOException.class, log::flush);
+        }
+    }
+
+    @Test
+    void failedSyncAppendThrows() throws IOException {
+        Path file = directory.resolve("missing").resolve("sync.log");
+        try (WriteAheadLog log = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.SYNC)) {
+            assertThrows(IOException.class, () -> log.append("a"));
+            Files.createDirectories(file.getParent());
+            log.append("b");
+        }
+        assertEquals(List.of("b"), replay(file));
+    }
+
+    @Test
+    void readsOnlyTheRecordsOfOtherWriters() throws IOException {
+        Path file = directory.resolve("shared.log");
+        Path lockFile = directory.resolve("shared.lock");
+        try (SharedFileLock firstLock = new SharedFileLock(lockFile, 0);
+             SharedFileLock secondLock = new SharedFileLock(lockFile, 0);
+             WriteAheadLog first = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.SYNC);
+             WriteAheadLog second = new WriteAheadLog(file, WriteAheadLog.DurabilityMode.SYNC)) {
+            first.setSharedLock(firstLock);
+            second.setSharedLock(secondLock);
+            first.replay(_ -> {
+            });
+            first.append("own");
+            second.append("other");
+
+            List<String> appended = new ArrayList<>();
+            assertTrue(first.readAppended(appended::add));
+            assertEquals(List.of("other"), appended);
+        }
+    }
+
+    private static List<String> replay(Path file) throws IOException {
+        List<String> records = new ArrayList<>();
+        WriteAheadLog.replay(file, records::add);
+        return records;
+    }
+}